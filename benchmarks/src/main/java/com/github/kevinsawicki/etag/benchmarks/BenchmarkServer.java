@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag.benchmarks;
+
+import static com.github.kevinsawicki.http.HttpRequest.ENCODING_GZIP;
+import static com.github.kevinsawicki.http.HttpRequest.HEADER_CONTENT_ENCODING;
+import static com.github.kevinsawicki.http.HttpRequest.HEADER_ETAG;
+import static com.github.kevinsawicki.http.HttpRequest.HEADER_IF_NONE_MATCH;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+import static java.net.HttpURLConnection.HTTP_OK;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+
+/**
+ * Embedded HTTP server that the benchmarks make requests against
+ * <p>
+ * The following paths are served:
+ * <ul>
+ * <li><code>/small</code> - small body with a fixed ETag</li>
+ * <li><code>/large</code> - one megabyte body with a fixed ETag</li>
+ * <li><code>/gzip</code> - gzip'ed body with a fixed ETag</li>
+ * <li><code>/changing</code> - small body with a new ETag on every request
+ * </li>
+ * </ul>
+ * Requests for fixed ETag paths that send a matching If-None-Match header get
+ * a 304 response.
+ */
+public class BenchmarkServer {
+
+  /**
+   * Size of the body served for <code>/large</code>
+   */
+  public static final int LARGE_SIZE = 1024 * 1024;
+
+  private static final String ETAG = "\"benchmark\"";
+
+  private final byte[] small = "{\"name\":\"etag-cache\",\"value\":42}"
+      .getBytes();
+
+  private final byte[] large = new byte[LARGE_SIZE];
+
+  private final byte[] gzip;
+
+  private final AtomicLong version = new AtomicLong();
+
+  private Server server;
+
+  private String url;
+
+  /**
+   * Create server
+   *
+   * @throws IOException
+   */
+  public BenchmarkServer() throws IOException {
+    Arrays.fill(large, (byte) 'a');
+
+    final StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 1000; i++)
+      json.append("{\"id\":").append(i).append(",\"name\":\"item\"},");
+    json.append("{}]");
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final GZIPOutputStream output = new GZIPOutputStream(bytes);
+    output.write(json.toString().getBytes());
+    output.close();
+    gzip = bytes.toByteArray();
+  }
+
+  /**
+   * Start server on an ephemeral port
+   *
+   * @return base URL of server
+   * @throws Exception
+   */
+  public String start() throws Exception {
+    server = new Server();
+    server.setHandler(new AbstractHandler() {
+
+      public void handle(final String target, final Request baseRequest,
+          final HttpServletRequest request, final HttpServletResponse response)
+          throws IOException {
+        baseRequest.setHandled(true);
+        BenchmarkServer.this.handle(target, request, response);
+      }
+    });
+    final Connector connector = new SelectChannelConnector();
+    connector.setPort(0);
+    server.setConnectors(new Connector[] { connector });
+    server.start();
+    url = "http://localhost:" + connector.getLocalPort();
+    return url;
+  }
+
+  /**
+   * Stop server
+   *
+   * @throws Exception
+   */
+  public void stop() throws Exception {
+    if (server != null)
+      server.stop();
+  }
+
+  /**
+   * @return base URL of server
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  private void handle(final String target, final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException {
+    if ("/changing".equals(target)) {
+      response.setHeader(HEADER_ETAG,
+          "\"" + version.incrementAndGet() + "\"");
+      response.setStatus(HTTP_OK);
+      response.getOutputStream().write(small);
+      return;
+    }
+
+    response.setHeader(HEADER_ETAG, ETAG);
+    if (ETAG.equals(request.getHeader(HEADER_IF_NONE_MATCH))) {
+      response.setStatus(HTTP_NOT_MODIFIED);
+      return;
+    }
+
+    response.setStatus(HTTP_OK);
+    if ("/large".equals(target)) {
+      response.setContentLength(large.length);
+      response.getOutputStream().write(large);
+    } else if ("/gzip".equals(target)) {
+      response.setHeader(HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+      response.setContentLength(gzip.length);
+      response.getOutputStream().write(gzip);
+    } else {
+      response.setContentLength(small.length);
+      response.getOutputStream().write(small);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag.benchmarks;
+
+import com.github.kevinsawicki.etag.CacheRequest;
+import com.github.kevinsawicki.etag.EtagCache;
+import com.github.kevinsawicki.etag.EtagCache.CacheResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of requests made through an {@link EtagCache} against a local
+ * {@link BenchmarkServer}
+ * <p>
+ * Throughput and sampled latency percentiles are reported for each scenario.
+ * Run with <code>-prof gc</code> to also report the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EtagCacheBenchmark {
+
+  /**
+   * Size of the in-memory tier, 0 to only use the disk cache
+   */
+  @Param({ "0", "8388608" })
+  public long memorySize;
+
+  private BenchmarkServer server;
+
+  private File directory;
+
+  private EtagCache cache;
+
+  private URLConnection lookupConnection;
+
+  /**
+   * Start server and populate cache with the entries used by the 304
+   * scenarios
+   *
+   * @throws Exception
+   */
+  @Setup
+  public void setUp() throws Exception {
+    server = new BenchmarkServer();
+    server.start();
+
+    directory = File.createTempFile("etag-cache", ".benchmark");
+    if (!directory.delete() || !directory.mkdirs())
+      throw new IOException("Unable to create " + directory);
+    cache = EtagCache.create(directory, 64 * EtagCache.ONE_MB, memorySize);
+    if (cache == null)
+      throw new IOException("Unable to create cache in " + directory);
+
+    request("/small");
+    request("/large");
+    request("/gzip");
+    cache.flush();
+
+    lookupConnection = new URL(server.getUrl() + "/small").openConnection();
+  }
+
+  /**
+   * Close cache and stop server
+   *
+   * @throws Exception
+   */
+  @TearDown
+  public void tearDown() throws Exception {
+    cache.close();
+    server.stop();
+    delete(directory);
+  }
+
+  private static void delete(final File file) {
+    final File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+
+  private long request(final String path) throws IOException {
+    final CacheRequest request = CacheRequest.get(server.getUrl() + path,
+        cache);
+    final InputStream stream = request.stream();
+    try {
+      final byte[] buffer = new byte[8192];
+      long total = 0;
+      int read;
+      while ((read = stream.read(buffer)) != -1)
+        total += read;
+      return total;
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Cache lookup for a cached URL without making a request
+   *
+   * @return ETag
+   */
+  @Benchmark
+  public String lookup() {
+    final CacheResponse response = cache.get(lookupConnection);
+    try {
+      return response.eTag;
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Revalidation of a small cached body that is served from the cache
+   *
+   * @return bytes read
+   * @throws IOException
+   */
+  @Benchmark
+  public long notModified() throws IOException {
+    return request("/small");
+  }
+
+  /**
+   * Revalidation of a one megabyte cached body that is served from the cache
+   *
+   * @return bytes read
+   * @throws IOException
+   */
+  @Benchmark
+  public long notModifiedLarge() throws IOException {
+    return request("/large");
+  }
+
+  /**
+   * Revalidation of a cached gzip'ed body that is served from the cache
+   *
+   * @return bytes read
+   * @throws IOException
+   */
+  @Benchmark
+  public long notModifiedGzip() throws IOException {
+    return request("/gzip");
+  }
+
+  /**
+   * Request for a body that changed and is copied into the cache
+   *
+   * @return bytes read
+   * @throws IOException
+   */
+  @Benchmark
+  public long modified() throws IOException {
+    return request("/changing");
+  }
+
+  /**
+   * Revalidation of a small cached body from many threads at once
+   *
+   * @return bytes read
+   * @throws IOException
+   */
+  @Benchmark
+  @Threads(32)
+  public long notModifiedConcurrent() throws IOException {
+    return request("/small");
+  }
+
+  /**
+   * Request for a changed body from many threads at once
+   *
+   * @return bytes read
+   * @throws IOException
+   */
+  @Benchmark
+  @Threads(32)
+  public long modifiedConcurrent() throws IOException {
+    return request("/changing");
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+/**
+ * Pool of fixed-size byte arrays that are reused across streams
+ * <p>
+ * At most a fixed number of released arrays are kept and arrays are allocated
+ * when the pool is empty, so the pool never blocks.
+ */
+class BufferPool {
+
+  private final int bufferSize;
+
+  private final byte[][] buffers;
+
+  private int count;
+
+  /**
+   * Create pool
+   *
+   * @param bufferSize
+   *          size of each array
+   * @param maxBuffers
+   *          maximum number of released arrays to keep
+   */
+  BufferPool(final int bufferSize, final int maxBuffers) {
+    this.bufferSize = bufferSize;
+    buffers = new byte[maxBuffers][];
+  }
+
+  /**
+   * Take an array from the pool
+   *
+   * @return array of the pool's buffer size
+   */
+  byte[] acquire() {
+    synchronized (this) {
+      if (count > 0) {
+        final byte[] buffer = buffers[--count];
+        buffers[count] = null;
+        return buffer;
+      }
+    }
+    return new byte[bufferSize];
+  }
+
+  /**
+   * Return an array to the pool
+   *
+   * @param buffer
+   */
+  synchronized void release(final byte[] buffer) {
+    if (buffer.length == bufferSize && count < buffers.length)
+      buffers[count++] = buffer;
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.net.URL;
+
+/**
+ * Callback notified when a request made through
+ * {@link EtagCache#fetch(URL, java.util.concurrent.Executor, CacheCallback)}
+ * completes
+ * <p>
+ * Methods are called on the thread that completed the request, which is the
+ * calling thread when the response was served from the cache without making
+ * a request, and should return quickly.
+ */
+public interface CacheCallback {
+
+  /**
+   * Request completed
+   *
+   * @param result
+   */
+  void onResult(CacheResult result);
+
+  /**
+   * Request failed
+   *
+   * @param url
+   * @param error
+   */
+  void onError(URL url, Exception error);
+}
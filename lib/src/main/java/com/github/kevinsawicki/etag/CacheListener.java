@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+/**
+ * Listener notified of the activity of an {@link EtagCache}
+ * <p>
+ * Methods are called on the threads doing the work and should return quickly.
+ * {@link CacheStats} can be extended to only handle some events.
+ */
+public interface CacheListener {
+
+  /**
+   * Response was served from the cache
+   */
+  void onHit();
+
+  /**
+   * Response was served from the network
+   */
+  void onMiss();
+
+  /**
+   * Cache was searched for an entry
+   *
+   * @param nanos
+   *          time taken by the lookup
+   * @param found
+   *          true if an entry was found
+   */
+  void onLookup(long nanos, boolean found);
+
+  /**
+   * Conditional request was made for a cached entry
+   *
+   * @param nanos
+   *          time until the response status was received
+   * @param notModified
+   *          true if the server replied 304 (Not Modified)
+   */
+  void onRevalidation(long nanos, boolean notModified);
+
+  /**
+   * Bytes of a response body were read
+   *
+   * @param bytes
+   * @param fromCache
+   *          true if read from the cache, false if read from the network
+   */
+  void onRead(long bytes, boolean fromCache);
+
+  /**
+   * Entry was committed to the cache
+   *
+   * @param bytes
+   *          number of body bytes written
+   */
+  void onWrite(long bytes);
+
+  /**
+   * Entries were evicted from the memory tier
+   *
+   * @param count
+   */
+  void onEviction(int count);
+
+  /**
+   * Edit of an entry was aborted
+   */
+  void onAbort();
+
+  /**
+   * Response could not be stored because the entry was already being edited
+   */
+  void onEditorBusy();
+}
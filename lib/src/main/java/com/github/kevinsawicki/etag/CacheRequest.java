@@ -15,23 +15,34 @@
  */
 package com.github.kevinsawicki.etag;
 
+import static java.net.HttpURLConnection.HTTP_GONE;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
 
 import com.github.kevinsawicki.etag.EtagCache.CacheResponse;
+import com.github.kevinsawicki.etag.EtagCache.Flight;
 import com.github.kevinsawicki.http.HttpRequest;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Request that uses a cache.
  * <p>
  * This request will always auto-uncompress any gzip'ed response streams
  * returned from {@link #stream()} regardless of the setting of
- * {@link #uncompress(boolean)}. This is because streams are stored uncompressed
- * in the cache and will be read uncompressed when a cached response is used.
+ * {@link #uncompress(boolean)}. This is because streams are always read
+ * uncompressed from the cache when a cached response is used, regardless of how
+ * they are stored.
  */
 public class CacheRequest extends HttpRequest {
 
@@ -61,16 +72,40 @@ public class CacheRequest extends HttpRequest {
     return new CacheRequest(url, METHOD_GET, cache);
   }
 
+  private static final String HEADER_RANGE = "Range";
+
+  private static final String HEADER_IF_RANGE = "If-Range";
+
   private final EtagCache cache;
 
   private CacheResponse response;
 
+  private CacheResponse partial;
+
+  private boolean resumed;
+
   private boolean etagAdded;
 
   private boolean cached;
 
   private boolean flushToDisk;
 
+  private boolean local;
+
+  private int negative;
+
+  private String flightKey;
+
+  private boolean revalidated;
+
+  private boolean background;
+
+  private long refreshUntil;
+
+  private final Map<String, String> hidden = new HashMap<String, String>(2);
+
+  private Map<String, String> headers;
+
   /**
    * Create cache request
    *
@@ -101,9 +136,32 @@ public class CacheRequest extends HttpRequest {
     this.cache = cache;
   }
 
+  /**
+   * Set a request header
+   * <p>
+   * Credentials must be set through this method, or the methods that call it,
+   * to look up cached responses that vary by them, since the connection does
+   * not return them once set.
+   *
+   * @param name
+   * @param value
+   * @return this request
+   */
+  @Override
+  public CacheRequest header(final String name, final String value) {
+    super.header(name, value);
+    if (EtagCache.isHidden(name))
+      hidden.put(name.toLowerCase(Locale.US), value);
+    return this;
+  }
+
   /**
    * Set where the cache should be flushed to disk after every response
+   * <p>
+   * Responses are flushed with the next group of commits instead when the
+   * cache has group flushing enabled.
    *
+   * @see EtagCache#setGroupFlush(int, long)
    * @param flush
    * @return this request
    */
@@ -114,6 +172,8 @@ public class CacheRequest extends HttpRequest {
 
   /**
    * Was the body of the response served from the cache?
+   * <p>
+   * Remembered 404 and 410 responses are not reported as served from the cache
    *
    * @return true if served from the cache, false if served from the network
    */
@@ -121,6 +181,36 @@ public class CacheRequest extends HttpRequest {
     return cached;
   }
 
+  /**
+   * Get the cached response that the body of this request is served from
+   * <p>
+   * This can be used to access the cached body through
+   * {@link CacheResponse#buffer()} or
+   * {@link CacheResponse#transferTo(java.nio.channels.WritableByteChannel)}
+   * instead of {@link #stream()}.
+   *
+   * @return cached response or null if the body is not served from the cache
+   * @throws HttpRequestException
+   */
+  public CacheResponse cachedResponse() throws HttpRequestException {
+    addEtag();
+    if (!local && (rawCode() != HTTP_NOT_MODIFIED || response == null))
+      return null;
+    if (response == null)
+      return null;
+
+    registerHit();
+    return response;
+  }
+
+  private void registerHit() {
+    if (cached)
+      return;
+
+    cache.registerHit();
+    cached = true;
+  }
+
   private void closeCacheResponse() {
     if (response == null)
       return;
@@ -129,36 +219,332 @@ public class CacheRequest extends HttpRequest {
     response = null;
   }
 
-  @Override
-  protected HttpRequest closeOutput() throws IOException {
+  /**
+   * Get the values of the request headers by lowercase name before connecting
+   * since the connection adds default headers once connected
+   *
+   * @return headers or null if already connected
+   */
+  private Map<String, String> getHeaders() {
+    final Map<String, String> headers = new HashMap<String, String>(hidden);
+    final HttpURLConnection connection = getConnection();
+    try {
+      for (String name : connection.getRequestProperties().keySet())
+        if (name != null)
+          headers.put(name.toLowerCase(Locale.US),
+              connection.getRequestProperty(name));
+    } catch (IllegalStateException e) {
+      return null;
+    }
+    return headers;
+  }
+
+  private void addEtag() {
     // Only attempt to add an etag once
-    if (!etagAdded) {
-      etagAdded = true;
-      response = cache.get(getConnection());
-      if (response != null)
+    if (etagAdded)
+      return;
+    etagAdded = true;
+
+    headers = getHeaders();
+    // Only responses to GET requests are cached so other requests are always
+    // sent as-is
+    if (METHOD_GET.equals(method()))
+      response = cache.get(getConnection(), headers);
+    if (refreshUntil > 0) {
+      // Refreshes only revalidate stored responses that will soon be stale
+      if (response == null || response.getStaleness(refreshUntil) < 0)
+        local = true;
+      else
         ifNoneMatch(response.eTag);
+      return;
+    }
+    if (!background && METHOD_GET.equals(method())) {
+      cache.registerRequest(getConnection());
+      // Remembered 404 (Not Found) and 410 (Gone) responses are served
+      // without making a request
+      negative = cache.getNegative(getConnection());
+      if (negative != 0) {
+        closeCacheResponse();
+        local = true;
+        return;
+      }
+    }
+    // Fresh responses are served without making a request
+    if (response != null && cache.isServeFresh() && response.isFresh()) {
+      local = true;
+      return;
+    }
+    // Stale responses are served while being revalidated in the background
+    if (response != null && !background && METHOD_GET.equals(method())
+        && cache.revalidate(getConnection(), response, hidden)) {
+      local = true;
+      return;
     }
+    if (cache.getCoalescingTimeout() > 0 && METHOD_GET.equals(method()))
+      coalesce();
+    if (response != null && !local)
+      ifNoneMatch(response.eTag);
+    else if (response == null && !local && !background
+        && METHOD_GET.equals(method()))
+      requestRemainder();
+  }
+
+  /**
+   * Request only the bytes missing from a partially stored response
+   * <p>
+   * The server sends the complete response instead if it changed since the
+   * partial response was stored.
+   */
+  private void requestRemainder() {
+    partial = cache.getPartial(getConnection());
+    if (partial == null)
+      return;
+
+    header(HEADER_RANGE, "bytes=" + partial.getStoredLength() + '-');
+    header(HEADER_IF_RANGE, partial.eTag);
+  }
+
+  /**
+   * Is the response the remainder of the partially stored response?
+   *
+   * @return true if resumed, false otherwise
+   */
+  private boolean isResumed() {
+    if (!resumed && partial != null)
+      resumed = rawCode() == HTTP_PARTIAL
+          && EtagCache.isRemainder(getConnection(), partial);
+    return resumed;
+  }
+
+  private void closePartial() {
+    if (partial == null)
+      return;
+
+    partial.close();
+    partial = null;
+  }
+
+  /**
+   * Wait for any request for the same URL that is already in flight and serve
+   * the response it stored, or become the request others wait for
+   */
+  private void coalesce() {
+    final String key = EtagCache.getKey(getConnection());
+    if (key == null)
+      return;
+
+    final Flight flight = cache.joinFlight(key);
+    if (flight == null) {
+      flightKey = key;
+      return;
+    }
+
+    if (!cache.awaitFlight(flight))
+      return;
+    final CacheResponse latest = cache.get(getConnection(), headers);
+    if (latest == null)
+      return;
+
+    closeCacheResponse();
+    response = latest;
+    local = true;
+  }
+
+  private void endFlight() {
+    if (flightKey == null)
+      return;
+
+    cache.endFlight(flightKey);
+    flightKey = null;
+  }
+
+  /**
+   * Can the response be served from the cache without making a request?
+   *
+   * @return true if served locally, false if a request must be made
+   */
+  boolean isLocal() {
+    addEtag();
+    return local;
+  }
+
+  /**
+   * Revalidate the cached response and store the new response if it changed
+   * <p>
+   * This is used for background revalidations and does not register a hit or
+   * miss since the response is not served to a caller.
+   *
+   * @throws IOException
+   */
+  void revalidate() throws IOException {
+    background = true;
+    addEtag();
+    try {
+      if (local || rawCode() == HTTP_NOT_MODIFIED)
+        return;
+
+      final InputStream stream = cache.put(getConnection(), flushToDisk,
+          headers);
+      if (stream == null)
+        return;
+      // The cache stream ends the flight once the response has been stored
+      flightKey = null;
+      try {
+        final byte[] buffer = new byte[8192];
+        while (stream.read(buffer) != -1)
+          ;
+      } finally {
+        stream.close();
+      }
+    } finally {
+      closeCacheResponse();
+      endFlight();
+    }
+  }
+
+  /**
+   * Revalidate the cached response if it will no longer be fresh at the given
+   * time
+   * <p>
+   * Nothing is requested when no response is cached.
+   *
+   * @param until
+   *          time in milliseconds
+   * @throws IOException
+   */
+  void refresh(final long until) throws IOException {
+    refreshUntil = until;
+    revalidate();
+  }
+
+  @Override
+  protected HttpRequest closeOutput() throws IOException {
+    addEtag();
 
     return super.closeOutput();
   }
 
+  /**
+   * Get the status code of the response received from the server
+   *
+   * @return code
+   * @throws HttpRequestException
+   */
+  private int rawCode() throws HttpRequestException {
+    final boolean revalidation = response != null && !revalidated;
+    final long start = revalidation ? System.nanoTime() : 0;
+    final int code;
+    try {
+      code = super.code();
+    } catch (HttpRequestException e) {
+      endFlight();
+      if (serveStale())
+        return HTTP_NOT_MODIFIED;
+      throw e;
+    }
+    if (revalidation) {
+      revalidated = true;
+      cache.registerRevalidation(System.nanoTime() - start,
+          code == HTTP_NOT_MODIFIED);
+      if (code == HTTP_NOT_MODIFIED)
+        cache.refresh(getConnection(), response);
+      else if (code >= HTTP_INTERNAL_ERROR && serveStale()) {
+        endFlight();
+        return HTTP_NOT_MODIFIED;
+      }
+    }
+    // A 200 response ends the flight once it has been stored
+    if (code != HTTP_OK)
+      endFlight();
+    return code;
+  }
+
+  /**
+   * Serve the cached response in place of a failed response to a GET request
+   * if it is within the stale-if-error window of the cache
+   *
+   * @return true if serving the cached response
+   */
+  private boolean serveStale() {
+    if (response == null || !METHOD_GET.equals(method())
+        || !cache.isUsableOnError(response))
+      return false;
+
+    local = true;
+    return true;
+  }
+
   @Override
   public int code() throws HttpRequestException {
-    int code = super.code();
-    if (code == HTTP_NOT_MODIFIED)
+    addEtag();
+    if (local)
+      return negative != 0 ? negative : HTTP_OK;
+
+    int code = rawCode();
+    // Requests waiting for this one stop waiting if the body is never read
+    if (flightKey != null)
+      cache.setFlightDeadline(flightKey, System.currentTimeMillis()
+          + EtagCache.FLIGHT_BODY_TIMEOUT);
+    if (code == HTTP_NOT_MODIFIED || isResumed())
       code = HTTP_OK;
-    else
+    else {
       closeCacheResponse();
+      forget(code);
+    }
     return code;
   }
 
+  /**
+   * Remove the cached response for a URL that is no longer found and remember
+   * the status code
+   *
+   * @param code
+   */
+  private void forget(final int code) {
+    if (code == HTTP_NOT_FOUND || code == HTTP_GONE)
+      cache.put(getConnection(), flushToDisk, headers);
+  }
+
   @Override
   public HttpRequest disconnect() {
     closeCacheResponse();
+    closePartial();
+    endFlight();
 
     return super.disconnect();
   }
 
+  /**
+   * Get a response header value for this request
+   * <p>
+   * Responses served from the cache without making a request only have an
+   * 'ETag' header.
+   */
+  @Override
+  public String header(final String name) throws HttpRequestException {
+    addEtag();
+    if (!local)
+      return super.header(name);
+
+    if (response == null || !HEADER_ETAG.equalsIgnoreCase(name))
+      return null;
+    return response.eTag;
+  }
+
+  @Override
+  public int intHeader(final String name, final int defaultValue)
+      throws HttpRequestException {
+    addEtag();
+    return local ? defaultValue : super.intHeader(name, defaultValue);
+  }
+
+  @Override
+  public long dateHeader(final String name, final long defaultValue)
+      throws HttpRequestException {
+    addEtag();
+    return local ? defaultValue : super.dateHeader(name, defaultValue);
+  }
+
   /**
    * Get the 'ETag' response header value for this request.
    * <p>
@@ -167,6 +553,10 @@ public class CacheRequest extends HttpRequest {
    */
   @Override
   public String eTag() {
+    addEtag();
+    if (local)
+      return response != null ? response.eTag : null;
+
     String tag = super.eTag();
     if (tag == null && response != null && super.code() == HTTP_NOT_MODIFIED)
       tag = response.eTag;
@@ -178,25 +568,60 @@ public class CacheRequest extends HttpRequest {
    * <p>
    * The streams returned by this method will always auto-uncompress any gzip'ed
    * responses regardless of the setting of {@link #uncompress(boolean)}.
+   * <p>
+   * Large bodies that are not read completely are stored when their length is
+   * known and the next request for the URL only asks for the rest of them.
    */
   @Override
   public InputStream stream() throws HttpRequestException {
-    final int rawCode = super.code();
+    addEtag();
+    if (local) {
+      // Remembered 404 and 410 responses are not counted as cache hits
+      if (negative == 0)
+        registerHit();
+      final InputStream body = response != null ? response.body
+          : new ByteArrayInputStream(new byte[0]);
+      return new CountingInputStream(body, cache, true);
+    }
+
+    final int rawCode = rawCode();
     if (rawCode == HTTP_NOT_MODIFIED && response != null) {
-      cache.registerHit();
-      cached = true;
-      return response.body;
+      registerHit();
+      return new CountingInputStream(response.body, cache, true);
     }
 
-    if (rawCode == HTTP_OK) {
+    if (isResumed()) {
       cache.registerMiss();
-      final InputStream streamWrapper = cache.put(getConnection(), flushToDisk);
-      if (streamWrapper != null)
-        return streamWrapper;
+      // The partial response is closed with the resumed stream
+      final InputStream resumedStream = cache.resume(getConnection(), partial,
+          flushToDisk);
+      partial = null;
+      if (resumedStream != null) {
+        flightKey = null;
+        return new CountingInputStream(resumedStream, cache, false);
+      }
     }
+    closePartial();
+
+    if (rawCode == HTTP_OK) {
+      cache.registerMiss();
+      // The cache stream ends the flight once the response has been stored
+      final InputStream streamWrapper = cache.put(getConnection(),
+          flushToDisk, headers);
+      if (streamWrapper != null) {
+        // Keep waiting requests waiting for the body to be stored
+        if (flightKey != null)
+          cache.setFlightDeadline(flightKey, Long.MAX_VALUE);
+        flightKey = null;
+        return new CountingInputStream(streamWrapper, cache, false);
+      }
+    } else
+      forget(rawCode);
+
+    endFlight();
 
     closeCacheResponse();
 
-    return super.stream();
+    return new CountingInputStream(super.stream(), cache, false);
   }
 }
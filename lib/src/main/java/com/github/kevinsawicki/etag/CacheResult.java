@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.net.URL;
+
+/**
+ * Completed response of a request made through {@link EtagCache#fetchAll}
+ */
+public class CacheResult {
+
+  /**
+   * URL that was requested, never null
+   */
+  public final URL url;
+
+  /**
+   * Status code of response, 304 responses are reported as 200
+   */
+  public final int code;
+
+  /**
+   * True if the body was served from the cache
+   */
+  public final boolean cached;
+
+  /**
+   * ETag of response, may be null
+   */
+  public final String eTag;
+
+  /**
+   * Body of response, never null
+   */
+  public final byte[] body;
+
+  /**
+   * Create result
+   *
+   * @param url
+   * @param code
+   * @param cached
+   * @param eTag
+   * @param body
+   */
+  public CacheResult(final URL url, final int code, final boolean cached,
+      final String eTag, final byte[] body) {
+    this.url = url;
+    this.code = code;
+    this.cached = cached;
+    this.eTag = eTag;
+    this.body = body;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+/**
+ * Listener that counts the activity of a cache
+ * <p>
+ * Counters are striped across threads so that updating them from many
+ * concurrent requests does not contend.
+ */
+public class CacheStats implements CacheListener {
+
+  private final StripedCounter hits = new StripedCounter();
+
+  private final StripedCounter misses = new StripedCounter();
+
+  private final StripedCounter lookups = new StripedCounter();
+
+  private final StripedCounter lookupNanos = new StripedCounter();
+
+  private final StripedCounter revalidations = new StripedCounter();
+
+  private final StripedCounter revalidationNanos = new StripedCounter();
+
+  private final StripedCounter notModified = new StripedCounter();
+
+  private final StripedCounter cacheBytes = new StripedCounter();
+
+  private final StripedCounter networkBytes = new StripedCounter();
+
+  private final StripedCounter writtenBytes = new StripedCounter();
+
+  private final StripedCounter writes = new StripedCounter();
+
+  private final StripedCounter evictions = new StripedCounter();
+
+  private final StripedCounter aborts = new StripedCounter();
+
+  private final StripedCounter editorBusy = new StripedCounter();
+
+  public void onHit() {
+    hits.increment();
+  }
+
+  public void onMiss() {
+    misses.increment();
+  }
+
+  public void onLookup(final long nanos, final boolean found) {
+    lookups.increment();
+    lookupNanos.add(nanos);
+  }
+
+  public void onRevalidation(final long nanos, final boolean notModified) {
+    revalidations.increment();
+    revalidationNanos.add(nanos);
+    if (notModified)
+      this.notModified.increment();
+  }
+
+  public void onRead(final long bytes, final boolean fromCache) {
+    if (fromCache)
+      cacheBytes.add(bytes);
+    else
+      networkBytes.add(bytes);
+  }
+
+  public void onWrite(final long bytes) {
+    writes.increment();
+    writtenBytes.add(bytes);
+  }
+
+  public void onEviction(final int count) {
+    evictions.add(count);
+  }
+
+  public void onAbort() {
+    aborts.increment();
+  }
+
+  public void onEditorBusy() {
+    editorBusy.increment();
+  }
+
+  /**
+   * @return number of responses served from the cache
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return number of responses served from the network
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return number of cache lookups
+   */
+  public long getLookupCount() {
+    return lookups.sum();
+  }
+
+  /**
+   * @return total nanoseconds spent in cache lookups
+   */
+  public long getLookupTime() {
+    return lookupNanos.sum();
+  }
+
+  /**
+   * @return number of conditional requests made for cached entries
+   */
+  public long getRevalidationCount() {
+    return revalidations.sum();
+  }
+
+  /**
+   * @return total nanoseconds spent waiting for conditional requests
+   */
+  public long getRevalidationTime() {
+    return revalidationNanos.sum();
+  }
+
+  /**
+   * @return number of conditional requests that were not modified
+   */
+  public long getNotModifiedCount() {
+    return notModified.sum();
+  }
+
+  /**
+   * @return number of body bytes read from the cache
+   */
+  public long getCacheBytes() {
+    return cacheBytes.sum();
+  }
+
+  /**
+   * @return number of body bytes read from the network
+   */
+  public long getNetworkBytes() {
+    return networkBytes.sum();
+  }
+
+  /**
+   * @return number of entries committed to the cache
+   */
+  public long getWriteCount() {
+    return writes.sum();
+  }
+
+  /**
+   * @return number of body bytes committed to the cache
+   */
+  public long getWrittenBytes() {
+    return writtenBytes.sum();
+  }
+
+  /**
+   * @return number of entries evicted from the memory tier
+   */
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return number of aborted edits
+   */
+  public long getAbortCount() {
+    return aborts.sum();
+  }
+
+  /**
+   * @return number of responses not stored because the entry was busy
+   */
+  public long getEditorBusyCount() {
+    return editorBusy.sum();
+  }
+
+  /**
+   * Reset all counters to zero
+   *
+   * @return this stats
+   */
+  public CacheStats reset() {
+    hits.reset();
+    misses.reset();
+    lookups.reset();
+    lookupNanos.reset();
+    revalidations.reset();
+    revalidationNanos.reset();
+    notModified.reset();
+    cacheBytes.reset();
+    networkBytes.reset();
+    writes.reset();
+    writtenBytes.reset();
+    evictions.reset();
+    aborts.reset();
+    editorBusy.reset();
+    return this;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Stream that verifies a cached body against the checksum it was stored with
+ * as it is read
+ * <p>
+ * The entry is evicted from the cache and an {@link IOException} is thrown
+ * once the whole body has been read and its checksum does not match.
+ */
+class ChecksumInputStream extends FilterInputStream {
+
+  private final CRC32 checksum = new CRC32();
+
+  private final long expected;
+
+  private final long length;
+
+  private final EtagCache cache;
+
+  private final String key;
+
+  private long read;
+
+  private boolean verified;
+
+  /**
+   * Create verifying stream
+   *
+   * @param input
+   * @param expected
+   *          CRC32 checksum of the body
+   * @param length
+   *          length of the body, -1 to verify at the end of the stream
+   * @param cache
+   * @param key
+   *          key of the entry to evict on a mismatch
+   */
+  ChecksumInputStream(final InputStream input, final long expected,
+      final long length, final EtagCache cache, final String key) {
+    super(input);
+
+    this.expected = expected;
+    this.length = length;
+    this.cache = cache;
+    this.key = key;
+  }
+
+  private void verify() throws IOException {
+    if (verified)
+      return;
+    verified = true;
+    if (checksum.getValue() == expected)
+      return;
+
+    cache.evict(key);
+    throw new IOException("Checksum mismatch for cached entry " + key);
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int value = super.read();
+    if (value == -1)
+      verify();
+    else {
+      checksum.update(value);
+      if (++read == length)
+        verify();
+    }
+    return value;
+  }
+
+  @Override
+  public int read(final byte[] buffer, final int offset, final int count)
+      throws IOException {
+    final int bytes = super.read(buffer, offset, count);
+    if (bytes == -1)
+      verify();
+    else if (bytes > 0) {
+      checksum.update(buffer, offset, bytes);
+      read += bytes;
+      if (read == length)
+        verify();
+    }
+    return bytes;
+  }
+
+  @Override
+  public long skip(final long count) throws IOException {
+    // Skipped bytes are read so that they are still verified
+    final byte[] buffer = new byte[(int) Math.min(Math.max(count, 0), 8192)];
+    long skipped = 0;
+    while (skipped < count) {
+      final int bytes = read(buffer, 0,
+          (int) Math.min(count - skipped, buffer.length));
+      if (bytes == -1)
+        break;
+      skipped += bytes;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+}
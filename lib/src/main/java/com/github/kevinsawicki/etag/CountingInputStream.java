@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream that registers the number of body bytes read with a cache
+ */
+class CountingInputStream extends FilterInputStream {
+
+  private final EtagCache cache;
+
+  private final boolean fromCache;
+
+  /**
+   * Create counting stream
+   *
+   * @param input
+   * @param cache
+   * @param fromCache
+   *          true if the input is read from the cache
+   */
+  CountingInputStream(final InputStream input, final EtagCache cache,
+      final boolean fromCache) {
+    super(input);
+
+    this.cache = cache;
+    this.fromCache = fromCache;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int read = super.read();
+    if (read != -1)
+      cache.registerRead(1, fromCache);
+    return read;
+  }
+
+  @Override
+  public int read(final byte[] buffer, final int offset, final int count)
+      throws IOException {
+    final int read = super.read(buffer, offset, count);
+    if (read > 0)
+      cache.registerRead(read, fromCache);
+    return read;
+  }
+
+  @Override
+  public long skip(final long count) throws IOException {
+    final long skipped = super.skip(count);
+    if (skipped > 0)
+      cache.registerRead(skipped, fromCache);
+    return skipped;
+  }
+}
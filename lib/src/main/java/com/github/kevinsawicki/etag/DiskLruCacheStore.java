@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * Store that keeps the metadata and body of each entry in two separate files
+ * of a {@link DiskLruCache}
+ * <p>
+ * This is the store used by default.
+ */
+public class DiskLruCacheStore implements Store {
+
+  private static final int METADATA = 0;
+
+  private static final int BODY = 1;
+
+  private static class DiskSnapshot implements Snapshot {
+
+    private final DiskLruCache.Snapshot snapshot;
+
+    private final Metadata metadata;
+
+    private final InputStream body;
+
+    DiskSnapshot(final DiskLruCache.Snapshot snapshot, final Metadata metadata) {
+      this.snapshot = snapshot;
+      this.metadata = metadata;
+      body = snapshot.getInputStream(BODY);
+    }
+
+    public Metadata getMetadata() {
+      return metadata;
+    }
+
+    public InputStream getBody() {
+      return body;
+    }
+
+    public long getBodyLength() {
+      return snapshot.getLength(BODY);
+    }
+
+    public FileChannel getChannel() {
+      if (body instanceof FileInputStream)
+        return ((FileInputStream) body).getChannel();
+      else
+        return null;
+    }
+
+    public long getBodyOffset() {
+      return 0;
+    }
+
+    public void close() {
+      snapshot.close();
+    }
+  }
+
+  private static class DiskEditor implements Editor {
+
+    private final DiskLruCache.Editor editor;
+
+    private Metadata metadata;
+
+    DiskEditor(final DiskLruCache.Editor editor) {
+      this.editor = editor;
+    }
+
+    public OutputStream newOutputStream(final Metadata metadata)
+        throws IOException {
+      this.metadata = metadata;
+      final OutputStream output = editor.newOutputStream(BODY);
+      if (output == null)
+        throw new IOException("Unable to open body stream");
+      return output;
+    }
+
+    public void commit() throws IOException {
+      if (metadata != null)
+        editor.set(METADATA, metadata.format());
+      editor.commit();
+    }
+
+    public void abort() throws IOException {
+      editor.abort();
+    }
+  }
+
+  /**
+   * Open store in the given directory
+   *
+   * @param directory
+   * @param maxSize
+   * @return store
+   * @throws IOException
+   */
+  public static DiskLruCacheStore open(final File directory, final long maxSize)
+      throws IOException {
+    return new DiskLruCacheStore(directory, DiskLruCache.open(directory, 1, 2,
+        maxSize));
+  }
+
+  private final File directory;
+
+  private final DiskLruCache cache;
+
+  private DiskLruCacheStore(final File directory, final DiskLruCache cache) {
+    this.directory = directory;
+    this.cache = cache;
+  }
+
+  public Snapshot get(final String key) throws IOException {
+    final DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot == null)
+      return null;
+
+    final Metadata metadata;
+    try {
+      metadata = Metadata.parse(snapshot.getString(METADATA));
+    } catch (IOException e) {
+      snapshot.close();
+      throw e;
+    }
+    if (metadata == null || snapshot.getInputStream(BODY) == null) {
+      snapshot.close();
+      return null;
+    }
+    return new DiskSnapshot(snapshot, metadata);
+  }
+
+  public Editor edit(final String key) throws IOException {
+    final DiskLruCache.Editor editor = cache.edit(key);
+    return editor != null ? new DiskEditor(editor) : null;
+  }
+
+  public boolean update(final String key, final Metadata metadata)
+      throws IOException {
+    final DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null)
+      return false;
+
+    // Committing an existing entry keeps the values that were not written
+    try {
+      editor.set(METADATA, metadata.format());
+      editor.commit();
+      return true;
+    } catch (IOException e) {
+      editor.abort();
+      throw e;
+    } catch (IllegalStateException e) {
+      // Entry was not stored so the edit was aborted
+      return false;
+    }
+  }
+
+  public boolean remove(final String key) throws IOException {
+    return cache.remove(key);
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public Map<String, Long> getEntries() throws IOException {
+    return Journal.read(directory);
+  }
+
+  public void flush() throws IOException {
+    cache.flush();
+  }
+
+  public void close() throws IOException {
+    cache.close();
+  }
+}
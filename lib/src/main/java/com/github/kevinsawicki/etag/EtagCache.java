@@ -17,15 +17,20 @@ package com.github.kevinsawicki.etag;
 
 import static com.github.kevinsawicki.http.HttpRequest.CHARSET_UTF8;
 import static com.github.kevinsawicki.http.HttpRequest.ENCODING_GZIP;
+import static com.github.kevinsawicki.http.HttpRequest.HEADER_CACHE_CONTROL;
 import static com.github.kevinsawicki.http.HttpRequest.HEADER_CONTENT_ENCODING;
+import static com.github.kevinsawicki.http.HttpRequest.HEADER_CONTENT_LENGTH;
 import static com.github.kevinsawicki.http.HttpRequest.HEADER_ETAG;
 import static com.github.kevinsawicki.http.HttpRequest.METHOD_GET;
+import static java.net.HttpURLConnection.HTTP_GONE;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 import static java.net.HttpURLConnection.HTTP_OK;
 
-import com.jakewharton.disklrucache.DiskLruCache;
-import com.jakewharton.disklrucache.DiskLruCache.Editor;
-import com.jakewharton.disklrucache.DiskLruCache.Snapshot;
+import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FilterInputStream;
@@ -33,21 +38,43 @@ import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
 
 /**
  * Cache based solely on the ETag/If-None-Match request/response headers
  */
-public class EtagCache implements Flushable {
+public class EtagCache implements Flushable, Closeable {
 
   /**
    * One megabyte
@@ -72,13 +99,112 @@ public class EtagCache implements Flushable {
    * @return cache or null if creation failed
    */
   public static EtagCache create(final File file, final long size) {
+    return create(file, size, 0);
+  }
+
+  /**
+   * Create cache with an in-memory tier in front of the disk cache
+   *
+   * @param file
+   * @param size
+   * @param memorySize
+   *          maximum bytes to hold in memory, 0 to disable the memory tier
+   * @return cache or null if creation failed
+   */
+  public static EtagCache create(final File file, final long size,
+      final long memorySize) {
+    try {
+      return new EtagCache(file, size, memorySize);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Create cache that is sharded across the given directories
+   *
+   * @param directories
+   * @param size
+   *          maximum bytes to store across all directories
+   * @param memorySize
+   *          maximum bytes to hold in memory, 0 to disable the memory tier
+   * @return cache or null if creation failed
+   */
+  public static EtagCache create(final File[] directories, final long size,
+      final long memorySize) {
+    try {
+      return new EtagCache(directories, size, memorySize);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Create cache that is sharded across the given directories and stores
+   * entries in the given format
+   *
+   * @param directories
+   * @param size
+   *          maximum bytes to store across all directories
+   * @param memorySize
+   *          maximum bytes to hold in memory, 0 to disable the memory tier
+   * @param type
+   *          format entries are stored in
+   * @return cache or null if creation failed
+   */
+  public static EtagCache create(final File[] directories, final long size,
+      final long memorySize, final StoreType type) {
+    try {
+      return new EtagCache(directories, size, memorySize, type);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Create cache that stores entries in the given stores
+   *
+   * @param stores
+   * @param memorySize
+   *          maximum bytes to hold in memory, 0 to disable the memory tier
+   * @return cache or null if creation failed
+   */
+  public static EtagCache create(final Store[] stores, final long memorySize) {
     try {
-      return new EtagCache(file, size);
+      return new EtagCache(stores, memorySize);
     } catch (IOException e) {
       return null;
     }
   }
 
+  /**
+   * Size at which bodies on disk are memory-mapped by
+   * {@link CacheResponse#buffer()} instead of being read into the heap
+   */
+  public static final long MAP_THRESHOLD = 64L * 1024L;
+
+  /**
+   * Minimum length of bodies that are kept when not read completely so that
+   * the rest can be requested later
+   */
+  static final long MIN_RESUME_LENGTH = 64L * 1024L;
+
+  /**
+   * Number of pending removals at which they are applied to the stores
+   */
+  static final int REMOVE_BATCH = 64;
+
+  /**
+   * Milliseconds requests wait for a request in flight that has its response
+   * code but has not started reading the body, which it may never read
+   */
+  static final long FLIGHT_BODY_TIMEOUT = 100L;
+
+  /**
+   * Milliseconds between checks of the deadline of a request in flight
+   */
+  private static final long FLIGHT_POLL = 10L;
+
   /**
    * Get cached response
    */
@@ -90,60 +216,450 @@ public class EtagCache implements Flushable {
     public final String eTag;
 
     /**
-     * Body of response, never null
+     * Uncompressed body of response, never null
      */
     public final InputStream body;
 
-    private final Snapshot snapshot;
+    private final String encoding;
+
+    private final InputStream stored;
+
+    private final byte[] bytes;
+
+    private final long length;
+
+    private final Store.Snapshot snapshot;
+
+    private final long date;
+
+    private final long expires;
+
+    private final EtagCache cache;
+
+    /**
+     * Checksum of the stored body, -1 if not stored with one
+     */
+    private final long checksum;
+
+    /**
+     * Key the response is stored under
+     */
+    final String key;
+
+    /**
+     * Length of the complete body when only part of it is stored, -1
+     * otherwise
+     */
+    final long completeLength;
 
-    private CacheResponse(final String eTag, final InputStream body,
-        final Snapshot snapshot) {
+    private CacheResponse(final String key, final String eTag,
+        final String encoding, final byte[] bytes, final long date,
+        final long expires) throws IOException {
+      this.key = key;
       this.eTag = eTag;
-      this.body = body;
+      this.encoding = encoding;
+      this.bytes = bytes;
+      this.date = date;
+      this.expires = expires;
+      stored = new ByteArrayInputStream(bytes);
+      length = bytes.length;
+      completeLength = -1;
+      snapshot = null;
+      cache = null;
+      checksum = -1;
+      body = decode(stored, encoding);
+    }
+
+    private CacheResponse(final EtagCache cache, final String key,
+        final Metadata metadata, final Store.Snapshot snapshot)
+        throws IOException {
+      this.key = key;
+      eTag = metadata.eTag;
+      encoding = metadata.encoding;
+      date = metadata.date;
+      expires = metadata.getExpires();
+      length = snapshot.getBodyLength();
+      completeLength = length < metadata.length ? metadata.length : -1;
       this.snapshot = snapshot;
+      this.cache = cache;
+      checksum = metadata.checksum;
+      bytes = null;
+
+      // Deflated bodies are verified once inflated and others as stored
+      final boolean deflated = Metadata.ENCODING_DEFLATE.equals(encoding);
+      if (metadata.checksum >= 0 && !deflated)
+        stored = new ChecksumInputStream(snapshot.getBody(),
+            metadata.checksum, length, cache, key);
+      else
+        stored = snapshot.getBody();
+      // Partial bodies are only read as stored to resume their download
+      if (completeLength >= 0)
+        body = stored;
+      else if (metadata.checksum >= 0 && deflated)
+        body = new ChecksumInputStream(decode(stored, encoding),
+            metadata.checksum, -1, cache, key);
+      else
+        body = decode(stored, encoding);
+    }
+
+    /**
+     * @return number of body bytes stored
+     */
+    long getStoredLength() {
+      return length;
+    }
+
+    /**
+     * Is this response still fresh according to the 'Cache-Control' max-age
+     * it was stored with?
+     *
+     * @return true if it can be used without being revalidated
+     */
+    public boolean isFresh() {
+      return expires > System.currentTimeMillis();
+    }
+
+    /**
+     * Get how long ago this response stopped being fresh
+     *
+     * @param now
+     * @return milliseconds, negative if still fresh and
+     *         {@link Long#MAX_VALUE} if unknown
+     */
+    long getStaleness(final long now) {
+      if (date == 0)
+        return Long.MAX_VALUE;
+      return now - Math.max(date, expires);
+    }
+
+    /**
+     * Get a channel to the file the body is stored in
+     * <p>
+     * Reads from the returned channel should use absolute positions so that
+     * they do not affect {@link #body}.
+     *
+     * @return channel or null if the body is held in memory, stored
+     *         compressed, or not stored at the start of a file
+     */
+    public FileChannel channel() {
+      if (snapshot != null && snapshot.getBodyOffset() == 0)
+        return bodyChannel();
+      else
+        return null;
+    }
+
+    private FileChannel bodyChannel() {
+      return encoding == null && snapshot != null ? snapshot.getChannel()
+          : null;
+    }
+
+    /**
+     * Verify the stored body against its checksum and evict the entry if it
+     * does not match
+     *
+     * @param value
+     *          checksum of the body as read
+     * @throws IOException
+     */
+    private void verify(final long value) throws IOException {
+      if (checksum < 0 || value == checksum)
+        return;
+      cache.evict(key);
+      throw new IOException("Checksum mismatch for cached entry " + key);
+    }
+
+    /**
+     * Read the stored body through the heap to verify it against its checksum
+     *
+     * @param channel
+     * @param offset
+     * @throws IOException
+     */
+    private void verify(final FileChannel channel, final long offset)
+        throws IOException {
+      if (checksum < 0)
+        return;
+      final CRC32 crc = new CRC32();
+      final byte[] buffer = new byte[8192];
+      long position = 0;
+      while (position < length) {
+        final int read = channel.read(ByteBuffer.wrap(buffer, 0,
+            (int) Math.min(buffer.length, length - position)), offset
+            + position);
+        if (read == -1)
+          break;
+        crc.update(buffer, 0, read);
+        position += read;
+      }
+      verify(crc.getValue());
+    }
+
+    /**
+     * Get a read-only buffer of the body
+     * <p>
+     * Bodies held in memory are wrapped without copying, bodies on disk of at
+     * least {@link #MAP_THRESHOLD} bytes are memory-mapped, and smaller bodies
+     * on disk are read into a new buffer. Bodies on disk are verified against
+     * their checksum first, so mapping a body still reads it once.
+     *
+     * @return buffer or null if the body is stored compressed or not stored in
+     *         a file
+     * @throws IOException
+     */
+    public ByteBuffer buffer() throws IOException {
+      if (encoding != null)
+        return null;
+      if (bytes != null)
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+
+      final FileChannel channel = bodyChannel();
+      if (channel == null)
+        return null;
+      final long offset = snapshot.getBodyOffset();
+      if (length >= MAP_THRESHOLD) {
+        verify(channel, offset);
+        return channel.map(MapMode.READ_ONLY, offset, length);
+      }
+
+      final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+      while (buffer.hasRemaining())
+        if (channel.read(buffer, offset + buffer.position()) == -1)
+          break;
+      buffer.flip();
+      if (checksum >= 0) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.limit());
+        verify(crc.getValue());
+      }
+      return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the uncompressed body to the given blocking channel
+     * <p>
+     * Bodies stored uncompressed on disk are verified against their checksum
+     * and then transferred by the file channel without being copied through
+     * the heap.
+     *
+     * @param target
+     * @return number of bytes written
+     * @throws IOException
+     */
+    public long transferTo(final WritableByteChannel target)
+        throws IOException {
+      final FileChannel channel = bodyChannel();
+      if (channel != null) {
+        final long offset = snapshot.getBodyOffset();
+        verify(channel, offset);
+        long position = 0;
+        while (position < length)
+          position += channel.transferTo(offset + position, length - position,
+              target);
+        return position;
+      }
+
+      if (bytes != null && encoding == null) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+          target.write(buffer);
+        return bytes.length;
+      }
+
+      final byte[] buffer = new byte[8192];
+      long total = 0;
+      int read;
+      while ((read = body.read(buffer)) != -1) {
+        final ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+        while (chunk.hasRemaining())
+          target.write(chunk);
+        total += read;
+      }
+      return total;
     }
 
     public void close() {
-      snapshot.close();
+      if (snapshot != null)
+        snapshot.close();
     }
   }
 
-  private static final int ETAG = 0;
+  private static final String HEADER_AGE = "Age";
 
-  private static final int BODY = 1;
+  private static final String HEADER_VARY = "Vary";
 
-  private static final MessageDigest DIGEST;
+  private static final String HEADER_CONTENT_RANGE = "Content-Range";
 
-  static {
-    MessageDigest digest;
-    try {
-      digest = MessageDigest.getInstance("SHA-1");
-    } catch (NoSuchAlgorithmException e) {
-      digest = null;
+  /**
+   * Request headers that {@link HttpURLConnection} does not return and whose
+   * values must be given separately to look up responses that vary by them
+   */
+  private static final String[] HIDDEN_HEADERS = { "authorization",
+      "proxy-authorization" };
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Request in flight that requests for the same URL wait for
+   */
+  static class Flight {
+
+    final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Time in milliseconds after which waiting requests stop waiting
+     */
+    volatile long deadline = Long.MAX_VALUE;
+  }
+
+  /**
+   * Per-thread state used to derive cache keys without locking
+   */
+  private static class KeyHasher {
+
+    private final MessageDigest digest;
+
+    private final byte[] input = new byte[256];
+
+    private final byte[] hash = new byte[20];
+
+    private final char[] hex = new char[40];
+
+    KeyHasher(final MessageDigest digest) {
+      this.digest = digest;
+    }
+
+    String hash(final String uri) {
+      final int length = uri.length();
+      boolean ascii = length <= input.length;
+      for (int i = 0; ascii && i < length; i++) {
+        final char c = uri.charAt(i);
+        if (c < 0x80)
+          input[i] = (byte) c;
+        else
+          ascii = false;
+      }
+
+      try {
+        if (ascii)
+          digest.update(input, 0, length);
+        else
+          digest.update(uri.getBytes(CHARSET_UTF8));
+        digest.digest(hash, 0, hash.length);
+      } catch (UnsupportedEncodingException e) {
+        digest.reset();
+        return null;
+      } catch (DigestException e) {
+        digest.reset();
+        return null;
+      }
+
+      for (int i = 0; i < hash.length; i++) {
+        hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+        hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+      }
+      return new String(hex);
     }
-    DIGEST = digest;
   }
 
+  private static final ThreadLocal<KeyHasher> HASHER = new ThreadLocal<KeyHasher>() {
+
+    @Override
+    protected KeyHasher initialValue() {
+      try {
+        return new KeyHasher(MessageDigest.getInstance("SHA-1"));
+      } catch (NoSuchAlgorithmException e) {
+        return null;
+      }
+    }
+  };
+
   private static class CacheStream extends FilterInputStream {
 
-    private final Editor editor;
+    /**
+     * Size of chunks written to the editor or handed off to the background
+     * writer
+     */
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private static final BufferPool CHUNKS = new BufferPool(CHUNK_SIZE, 16);
+
+    private final Store.Editor editor;
 
     private final OutputStream output;
 
     private final EtagCache cache;
 
+    private final WriteBehind writer;
+
     private final boolean flushOnClose;
 
+    private final String key;
+
+    private final String flight;
+
+    private final Metadata metadata;
+
+    private final String encoding;
+
+    private final long length;
+
+    private final CRC32 checksum = new CRC32();
+
+    private ByteArrayOutputStream captured;
+
+    private byte[] chunk;
+
+    private int chunkLength;
+
+    private boolean failed;
+
     private boolean done;
 
+    private boolean eof;
+
+    private boolean partial;
+
+    private long written;
+
     CacheStream(final InputStream input, final OutputStream output,
-        final Editor editor, final EtagCache cache, final boolean flushOnClose) {
+        final Store.Editor editor, final EtagCache cache,
+        final boolean flushOnClose, final String key, final String flight,
+        final Metadata metadata, final String encoding, final long length) {
       super(input);
 
       this.editor = editor;
       this.cache = cache;
       this.output = output;
       this.flushOnClose = flushOnClose;
+      this.key = key;
+      this.flight = flight;
+      this.metadata = metadata;
+      this.encoding = encoding;
+      this.length = length;
+      writer = cache.writeBehind;
+      if (cache.memory != null)
+        captured = new ByteArrayOutputStream();
+    }
+
+    private void capture(final int value) {
+      if (captured == null)
+        return;
+
+      if (captured.size() < cache.memory.getMaxEntrySize())
+        captured.write(value);
+      else
+        captured = null;
+    }
+
+    private void capture(final byte[] buffer, final int offset,
+        final int count) {
+      if (captured == null)
+        return;
+
+      if (captured.size() + count <= cache.memory.getMaxEntrySize())
+        captured.write(buffer, offset, count);
+      else
+        captured = null;
     }
 
     private void abort() {
@@ -152,6 +668,20 @@ public class EtagCache implements Flushable {
           return;
         done = true;
       }
+      captured = null;
+      releaseChunk();
+      if (writer == null)
+        discard();
+      else
+        writer.execute(new Runnable() {
+
+          public void run() {
+            discard();
+          }
+        });
+    }
+
+    private void discard() {
       try {
         output.close();
       } catch (IOException ignored) {
@@ -162,32 +692,179 @@ public class EtagCache implements Flushable {
       } catch (IOException ignored) {
         // Ignored
       }
+      cache.registerAbort();
+      cache.endFlight(flight);
+    }
+
+    private void commit() throws IOException {
+      try {
+        output.close();
+        if (failed) {
+          editor.abort();
+          cache.registerAbort();
+          return;
+        }
+
+        // Stores write the metadata when the entry is committed
+        metadata.checksum = checksum.getValue();
+        editor.commit();
+        cache.registerWrite(written);
+
+        if (cache.memory != null)
+          if (captured != null && !partial)
+            cache.registerEvictions(cache.memory.put(key,
+                new MemoryCache.Entry(metadata.eTag, encoding, captured
+                    .toByteArray(), metadata.date, metadata.getExpires())));
+          else
+            cache.memory.remove(key);
+      } finally {
+        cache.endFlight(flight);
+      }
+
+      cache.committed(key, flushOnClose);
+    }
+
+    private void releaseChunk() {
+      if (chunk != null)
+        CHUNKS.release(chunk);
+      chunk = null;
+      chunkLength = 0;
+    }
+
+    /**
+     * Hand off the staged chunk to the background writer
+     *
+     * @return true if handed off, false if the writer is too far behind
+     */
+    private boolean submitChunk() {
+      final byte[] bytes = chunk;
+      final int length = chunkLength;
+      if (!writer.reserve(length)) {
+        releaseChunk();
+        return false;
+      }
+      chunk = null;
+      chunkLength = 0;
+
+      writer.execute(new Runnable() {
+
+        public void run() {
+          try {
+            if (!failed)
+              output.write(bytes, 0, length);
+          } catch (IOException e) {
+            failed = true;
+          } finally {
+            writer.release(length);
+            CHUNKS.release(bytes);
+          }
+        }
+      });
+      return true;
+    }
+
+    /**
+     * Write the staged chunk to the editor or hand it off to the background
+     * writer
+     *
+     * @return true if drained, false if the edit must be aborted
+     */
+    private boolean drainChunk() {
+      if (chunkLength == 0)
+        return true;
+      if (writer != null)
+        return submitChunk();
+
+      try {
+        output.write(chunk, 0, chunkLength);
+      } catch (IOException e) {
+        return false;
+      }
+      chunkLength = 0;
+      return true;
+    }
+
+    private boolean stage(final byte[] buffer, int offset, int count) {
+      while (count > 0) {
+        if (chunk == null)
+          chunk = CHUNKS.acquire();
+        final int length = Math.min(count, chunk.length - chunkLength);
+        System.arraycopy(buffer, offset, chunk, chunkLength, length);
+        chunkLength += length;
+        offset += length;
+        count -= length;
+        if (chunkLength == chunk.length && !drainChunk())
+          return false;
+      }
+      return true;
+    }
+
+    private boolean stage(final int value) {
+      if (chunk == null)
+        chunk = CHUNKS.acquire();
+      chunk[chunkLength++] = (byte) value;
+      return chunkLength < chunk.length || drainChunk();
+    }
+
+    /**
+     * Mark the body as completely read
+     */
+    private void finish() {
+      eof = true;
     }
 
     @Override
     public int read() throws IOException {
       final int read = super.read();
-      if (read != -1)
-        try {
-          output.write(read);
-        } catch (IOException e) {
-          abort();
-        }
+      if (read == -1)
+        finish();
+      if (read == -1 || done)
+        return read;
+
+      written++;
+      checksum.update(read);
+      if (stage(read))
+        capture(read);
+      else
+        abort();
       return read;
     }
 
     @Override
     public int read(byte[] buffer, int offset, int count) throws IOException {
       final int read = super.read(buffer, offset, count);
-      if (read > 0)
-        try {
-          output.write(buffer, offset, read);
-        } catch (IOException e) {
-          abort();
-        }
+      if (read == -1)
+        finish();
+      if (read <= 0 || done)
+        return read;
+
+      written += read;
+      checksum.update(buffer, offset, read);
+      if (stage(buffer, offset, read))
+        capture(buffer, offset, read);
+      else
+        abort();
       return read;
     }
 
+    @Override
+    public long skip(final long count) throws IOException {
+      if (count <= 0 || done)
+        return super.skip(count);
+
+      // Skipped bytes are read so that they are still stored
+      final byte[] buffer = new byte[(int) Math.min(count, 8192)];
+      long skipped = 0;
+      while (skipped < count) {
+        final int read = read(buffer, 0,
+            (int) Math.min(count - skipped, buffer.length));
+        if (read == -1)
+          break;
+        skipped += read;
+      }
+      return skipped;
+    }
+
     @Override
     public void close() throws IOException {
       synchronized (cache) {
@@ -198,48 +875,122 @@ public class EtagCache implements Flushable {
 
       super.close();
 
-      editor.commit();
+      // Bodies not read completely are only kept when the rest can be
+      // requested later, which requires their length to be stored
+      final boolean complete = length >= 0 ? written == length : eof;
+      partial = !complete && metadata.length >= 0 && written > 0
+          && written < metadata.length;
+      final boolean keep = drainChunk() && (complete || partial);
+      releaseChunk();
+      if (writer == null) {
+        if (keep)
+          commit();
+        else
+          discard();
+        return;
+      }
 
-      if (flushOnClose)
-        try {
-          cache.flush();
-        } catch (IOException ignored) {
-          // Ignored
-        }
-    }
-  }
+      if (!keep) {
+        writer.execute(new Runnable() {
 
-  private static String getKey(final String uri) {
-    final byte[] input;
-    try {
-      input = uri.getBytes(CHARSET_UTF8);
-    } catch (UnsupportedEncodingException e) {
-      return null;
-    }
+          public void run() {
+            discard();
+          }
+        });
+        return;
+      }
 
-    final byte[] digested;
-    synchronized (DIGEST) {
-      DIGEST.reset();
-      digested = DIGEST.digest(input);
-    }
+      writer.execute(new Runnable() {
 
-    final String hashed = new BigInteger(1, digested).toString(16);
-    final int padding = 40 - hashed.length();
-    if (padding == 0)
-      return hashed;
+        public void run() {
+          try {
+            commit();
+          } catch (IOException ignored) {
+            // Ignored
+          }
+        }
+      });
+    }
+  }
 
-    final char[] zeros = new char[padding];
-    Arrays.fill(zeros, '0');
-    return new StringBuilder(40).append(zeros).append(hashed).toString();
+  /**
+   * Get the cache key for the given URI
+   * <p>
+   * Keys are the lowercase hex SHA-1 of the UTF-8 bytes of the URI and are
+   * computed using a digest and buffers that are local to the calling thread.
+   *
+   * @param uri
+   * @return key or null if it could not be computed
+   */
+  static String getKey(final String uri) {
+    final KeyHasher hasher = HASHER.get();
+    return hasher != null ? hasher.hash(uri) : null;
   }
 
-  private static String getKey(final URLConnection connection) {
+  /**
+   * Get the cache key for the given connection
+   *
+   * @param connection
+   * @return key or null if the connection isn't cacheable
+   */
+  static String getKey(final URLConnection connection) {
     if (connection instanceof HttpURLConnection)
       return getKey(connection.getURL().toExternalForm());
     else
       return null;
   }
 
+  /**
+   * Is the given request header one that {@link HttpURLConnection} does not
+   * return?
+   *
+   * @param name
+   * @return true if hidden, false otherwise
+   */
+  static boolean isHidden(final String name) {
+    for (String hidden : HIDDEN_HEADERS)
+      if (hidden.equalsIgnoreCase(name))
+        return true;
+    return false;
+  }
+
+  /**
+   * Get the key of the variant of a response that the request of the given
+   * connection selects
+   *
+   * @param connection
+   * @param vary
+   *          lowercase names of the request headers the response varies by
+   * @param headers
+   *          values of the request headers by lowercase name as set before
+   *          connecting, null if not known
+   * @return key or null if the value of a request header is not known
+   */
+  static String getVariantKey(final URLConnection connection,
+      final String vary, final Map<String, String> headers) {
+    final StringBuilder variant = new StringBuilder(connection.getURL()
+        .toExternalForm());
+    for (String name : vary.split(",")) {
+      final String value;
+      // The connection adds default headers once connected so the values set
+      // before connecting select the variant both when looked up and stored
+      if (headers != null)
+        value = headers.get(name);
+      else if (isHidden(name))
+        return null;
+      else
+        try {
+          value = connection.getRequestProperty(name);
+        } catch (IllegalStateException e) {
+          return null;
+        }
+      variant.append('\n').append(name);
+      if (value != null)
+        variant.append(": ").append(value);
+    }
+    return getKey(variant.toString());
+  }
+
   private static boolean isCacheable(final HttpURLConnection connection) {
     try {
       return METHOD_GET.equals(connection.getRequestMethod())
@@ -249,11 +1000,48 @@ public class EtagCache implements Flushable {
     }
   }
 
-  private final DiskLruCache cache;
+  private static boolean isServerError(final HttpURLConnection connection) {
+    try {
+      return connection.getResponseCode() >= HTTP_INTERNAL_ERROR;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private final Store[] shards;
+
+  private final MemoryCache memory;
+
+  private volatile WriteBehind writeBehind;
+
+  private volatile boolean storeCompressed;
+
+  private volatile long coalescingTimeout;
+
+  private volatile boolean serveFresh = true;
+
+  private volatile Revalidator revalidator;
+
+  private volatile HotRefresher refresher;
 
-  private final AtomicInteger hits = new AtomicInteger(0);
+  private volatile GroupFlusher flusher;
 
-  private final AtomicInteger misses = new AtomicInteger(0);
+  private volatile long staleIfError;
+
+  private volatile long negativeTtl;
+
+  private final NegativeCache negatives = new NegativeCache(
+      NegativeCache.MAX_ENTRIES);
+
+  private final ConcurrentHashMap<String, Boolean> removals =
+      new ConcurrentHashMap<String, Boolean>();
+
+  private final ConcurrentHashMap<String, Flight> flights =
+      new ConcurrentHashMap<String, Flight>();
+
+  private final CacheStats stats = new CacheStats();
+
+  private volatile CacheListener listener;
 
   /**
    * Create cache
@@ -263,42 +1051,368 @@ public class EtagCache implements Flushable {
    * @throws IOException
    */
   public EtagCache(final File file, final long size) throws IOException {
-    if (DIGEST == null)
+    this(file, size, 0);
+  }
+
+  /**
+   * Create cache with an in-memory tier in front of the disk cache
+   * <p>
+   * The memory tier holds the ETags and bodies of recently used entries so
+   * that hits on them are served without any file I/O.
+   *
+   * @param file
+   * @param size
+   * @param memorySize
+   *          maximum bytes to hold in memory, 0 to disable the memory tier
+   * @throws IOException
+   */
+  public EtagCache(final File file, final long size, final long memorySize)
+      throws IOException {
+    this(new File[] { file }, size, memorySize);
+  }
+
+  /**
+   * Create cache that is sharded across the given directories
+   * <p>
+   * Each directory holds an independent disk cache with its own journal and
+   * lock and an equal share of the size. Entries are assigned to a directory
+   * by their key, so writes to different shards do not contend. Directories
+   * can be on different volumes and must always be given in the same order.
+   *
+   * @param directories
+   * @param size
+   *          maximum bytes to store across all directories
+   * @param memorySize
+   *          maximum bytes to hold in memory, 0 to disable the memory tier
+   * @throws IOException
+   */
+  public EtagCache(final File[] directories, final long size,
+      final long memorySize) throws IOException {
+    this(directories, size, memorySize, StoreType.DISK_LRU_CACHE);
+  }
+
+  /**
+   * Create cache that is sharded across the given directories and stores
+   * entries in the given format
+   * <p>
+   * Directories must only ever be opened with the same format.
+   *
+   * @param directories
+   * @param size
+   *          maximum bytes to store across all directories
+   * @param memorySize
+   *          maximum bytes to hold in memory, 0 to disable the memory tier
+   * @param type
+   *          format entries are stored in
+   * @throws IOException
+   */
+  public EtagCache(final File[] directories, final long size,
+      final long memorySize, final StoreType type) throws IOException {
+    this(open(type, directories, size), memorySize);
+  }
+
+  /**
+   * Create cache that stores entries in the given stores
+   * <p>
+   * Entries are assigned to a store by their key, so stores must always be
+   * given in the same order. The cache takes ownership of the stores and
+   * closes them when it is closed or fails to be created.
+   *
+   * @param stores
+   * @param memorySize
+   *          maximum bytes to hold in memory, 0 to disable the memory tier
+   * @throws IOException
+   */
+  public EtagCache(final Store[] stores, final long memorySize)
+      throws IOException {
+    if (stores.length == 0)
+      throw new IOException("No stores given");
+    if (HASHER.get() == null) {
+      close(stores);
       throw new IOException("No SHA-1 algorithm available");
+    }
+
+    shards = new Store[stores.length];
+    System.arraycopy(stores, 0, shards, 0, stores.length);
+    memory = memorySize > 0 ? new MemoryCache(memorySize) : null;
+  }
+
+  private static void close(final Store[] stores) {
+    for (Store store : stores)
+      if (store != null)
+        try {
+          store.close();
+        } catch (IOException ignored) {
+          // Ignored
+        }
+  }
+
+  private static Store[] open(final StoreType type, final File[] directories,
+      final long size) throws IOException {
+    if (directories.length == 0)
+      throw new IOException("No cache directories given");
+
+    final Store[] stores = new Store[directories.length];
+    final long shardSize = size / directories.length;
+    try {
+      for (int i = 0; i < stores.length; i++)
+        stores[i] = open(type, directories[i],
+            i == 0 ? size - shardSize * (stores.length - 1) : shardSize);
+    } catch (IOException e) {
+      close(stores);
+      throw e;
+    }
+    return stores;
+  }
 
-    cache = DiskLruCache.open(file, 1, 2, size);
+  private static Store open(final StoreType type, final File directory,
+      final long size) throws IOException {
+    switch (type) {
+    case SINGLE_FILE:
+      return SingleFileStore.open(directory, size);
+    case LOG_STRUCTURED:
+      return LogStore.open(directory, size);
+    default:
+      return DiskLruCacheStore.open(directory, size);
+    }
   }
 
   /**
-   * Register a hit to this cache
+   * Load the most recently used entries on disk into the in-memory tier on a
+   * background thread
+   * <p>
+   * Entries are chosen from the entries on disk, most recently used first,
+   * and are loaded until the byte budget or the time budget is used up.
+   * Entries with bodies too large for the memory tier are skipped. Entries are
+   * loaded in least recently used order so that their recency is kept.
+   *
+   * @param maxBytes
+   *          maximum bytes to load
+   * @param maxMillis
+   *          maximum time to spend loading
+   * @return future for the number of entries loaded, 0 when the memory tier
+   *         is disabled
+   */
+  public Future<Integer> warmUp(final long maxBytes, final long maxMillis) {
+    final FutureTask<Integer> task = new FutureTask<Integer>(
+        new Callable<Integer>() {
+
+          public Integer call() throws Exception {
+            return warmUp(selectWarmUp(maxBytes), maxMillis);
+          }
+        });
+    if (memory == null) {
+      task.run();
+      return task;
+    }
+
+    final Thread thread = new Thread(task, "EtagCache warm-up");
+    thread.setDaemon(true);
+    thread.start();
+    return task;
+  }
+
+  /**
+   * Select the keys of the entries to warm up
+   *
+   * @param maxBytes
+   * @return keys, most recently used first
+   */
+  private List<String> selectWarmUp(final long maxBytes) {
+    final List<String> keys = new ArrayList<String>();
+    if (memory == null)
+      return keys;
+
+    final List<Iterator<Map.Entry<String, Long>>> shardEntries = new ArrayList<Iterator<Map.Entry<String, Long>>>(
+        shards.length);
+    for (Store shard : shards)
+      try {
+        shardEntries.add(shard.getEntries().entrySet().iterator());
+      } catch (IOException ignored) {
+        // Ignored
+      }
+
+    // Shards are interleaved since stores do not record times of use
+    final long budget = Math.min(maxBytes, memory.getMaxSize());
+    long total = 0;
+    boolean more = true;
+    while (more && total < budget) {
+      more = false;
+      for (Iterator<Map.Entry<String, Long>> entries : shardEntries) {
+        if (!entries.hasNext())
+          continue;
+        more = true;
+        final Map.Entry<String, Long> entry = entries.next();
+        final long length = entry.getValue();
+        if (length > memory.getMaxEntrySize() || total + length > budget)
+          continue;
+        keys.add(entry.getKey());
+        total += length;
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Load the entries for the given keys into the in-memory tier
    *
-   * @return hit count
+   * @param keys
+   *          most recently used first
+   * @param maxMillis
+   * @return number of entries loaded
+   */
+  private int warmUp(final List<String> keys, final long maxMillis) {
+    final long deadline = System.currentTimeMillis() + maxMillis;
+    int loaded = 0;
+    for (int i = keys.size() - 1; i >= 0; i--) {
+      if (System.currentTimeMillis() >= deadline)
+        break;
+      final CacheResponse response = get(keys.get(i));
+      if (response != null) {
+        response.close();
+        loaded++;
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Get the store that holds the entry for the given key
+   *
+   * @param key
+   * @return store
+   */
+  private Store shard(final String key) {
+    if (shards.length == 1)
+      return shards[0];
+
+    // Keys are hex digests so their leading digits are evenly distributed
+    int hash = 0;
+    for (int i = 0; i < 7; i++)
+      hash = (hash << 4) | Character.digit(key.charAt(i), 16);
+    return shards[hash % shards.length];
+  }
+
+  /**
+   * Register a hit to this cache
    */
-  int registerHit() {
-    return hits.incrementAndGet();
+  void registerHit() {
+    stats.onHit();
+    final CacheListener listener = this.listener;
+    if (listener != null)
+      listener.onHit();
   }
 
   /**
    * Register a miss to this cache
+   */
+  void registerMiss() {
+    stats.onMiss();
+    final CacheListener listener = this.listener;
+    if (listener != null)
+      listener.onMiss();
+  }
+
+  /**
+   * Register a conditional request made for a cached entry
+   *
+   * @param nanos
+   * @param notModified
+   */
+  void registerRevalidation(final long nanos, final boolean notModified) {
+    stats.onRevalidation(nanos, notModified);
+    final CacheListener listener = this.listener;
+    if (listener != null)
+      listener.onRevalidation(nanos, notModified);
+  }
+
+  /**
+   * Register body bytes read by a caller
+   *
+   * @param bytes
+   * @param fromCache
+   */
+  void registerRead(final long bytes, final boolean fromCache) {
+    stats.onRead(bytes, fromCache);
+    final CacheListener listener = this.listener;
+    if (listener != null)
+      listener.onRead(bytes, fromCache);
+  }
+
+  private void registerLookup(final long nanos, final boolean found) {
+    stats.onLookup(nanos, found);
+    final CacheListener listener = this.listener;
+    if (listener != null)
+      listener.onLookup(nanos, found);
+  }
+
+  private void registerWrite(final long bytes) {
+    stats.onWrite(bytes);
+    final CacheListener listener = this.listener;
+    if (listener != null)
+      listener.onWrite(bytes);
+  }
+
+  private void registerEvictions(final int count) {
+    if (count == 0)
+      return;
+
+    stats.onEviction(count);
+    final CacheListener listener = this.listener;
+    if (listener != null)
+      listener.onEviction(count);
+  }
+
+  private void registerAbort() {
+    stats.onAbort();
+    final CacheListener listener = this.listener;
+    if (listener != null)
+      listener.onAbort();
+  }
+
+  private void registerEditorBusy() {
+    stats.onEditorBusy();
+    final CacheListener listener = this.listener;
+    if (listener != null)
+      listener.onEditorBusy();
+  }
+
+  /**
+   * Set listener to notify of the activity of this cache
+   * <p>
+   * The listener is called on the thread doing the work, which may be a
+   * request thread or the background writer, and should return quickly.
+   *
+   * @param listener
+   *          listener or null to remove the current listener
+   * @return this cache
+   */
+  public EtagCache setListener(final CacheListener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /**
+   * Get the stats tracked for this cache
    *
-   * @return miss count
+   * @return stats, never null
    */
-  int registerMiss() {
-    return misses.incrementAndGet();
+  public CacheStats getStats() {
+    return stats;
   }
 
   /**
    * @return hits
    */
   public int getHits() {
-    return hits.intValue();
+    return (int) stats.getHitCount();
   }
 
   /**
    * @return misses
    */
   public int getMisses() {
-    return misses.intValue();
+    return (int) stats.getMissCount();
   }
 
   /**
@@ -307,133 +1421,1334 @@ public class EtagCache implements Flushable {
    * @return size
    */
   public long getSize() {
-    return cache.size();
+    long size = 0;
+    for (Store shard : shards)
+      size += shard.size();
+    return size;
   }
 
   /**
-   * Reset stats tracked for cache hits and misses
+   * Set the maximum number of bytes that can be waiting to be written to disk
+   * by a background writer
+   * <p>
+   * When enabled, streams returned from {@link #put(URLConnection)} hand off
+   * the bytes read to a background thread instead of writing them to disk on
+   * the reading thread. The entry is committed once the stream is closed and
+   * is aborted if the writer falls more than the given number of bytes behind.
    *
+   * @param maxPendingBytes
+   *          maximum pending bytes, 0 to write on the reading thread
    * @return this cache
    */
-  public EtagCache resetStats() {
-    hits.set(0);
-    misses.set(0);
+  public EtagCache setWriteBehind(final long maxPendingBytes) {
+    final WriteBehind previous = writeBehind;
+    writeBehind = maxPendingBytes > 0 ? new WriteBehind(maxPendingBytes)
+        : null;
+    if (previous != null)
+      try {
+        previous.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     return this;
   }
 
   /**
-   * Get cached response for connection
+   * Set whether response bodies should be stored compressed
+   * <p>
+   * When enabled, gzip'ed responses are stored exactly as received and all
+   * other responses are deflated before being stored. Bodies are uncompressed
+   * as they are read from responses returned by {@link #get(URLConnection)}.
    *
-   * @param connection
-   * @return etag or null if not in cache or connection isn't cacheable
+   * @param compressed
+   * @return this cache
    */
-  public CacheResponse get(final URLConnection connection) {
-    final String key = getKey(connection);
-    if (key == null)
-      return null;
+  public EtagCache setStoreCompressed(final boolean compressed) {
+    storeCompressed = compressed;
+    return this;
+  }
 
-    Snapshot snapshot;
-    try {
-      snapshot = cache.get(key);
-    } catch (IOException e) {
-      return null;
-    }
-    if (snapshot == null)
-      return null;
+  /**
+   * Set how long a {@link CacheRequest} waits for a request for the same URL
+   * that is already in flight
+   * <p>
+   * When enabled, only the first of several concurrent requests for a URL
+   * goes to the network. The others wait for its response to be stored and are
+   * then served from the cache without making a request. Requests that time
+   * out waiting go to the network themselves.
+   *
+   * @param timeout
+   *          milliseconds to wait, 0 to disable coalescing
+   * @return this cache
+   */
+  public EtagCache setCoalescingTimeout(final long timeout) {
+    coalescingTimeout = timeout;
+    return this;
+  }
 
-    try {
-      final String etag = snapshot.getString(ETAG);
-      if (etag != null && etag.length() > 0) {
-        final InputStream body = snapshot.getInputStream(BODY);
-        if (body != null)
-          return new CacheResponse(etag, body, snapshot);
-      }
-    } catch (IOException e) {
-      return null;
-    }
-    return null;
+  /**
+   * Get how long a request waits for a request for the same URL that is
+   * already in flight
+   *
+   * @return milliseconds, 0 if coalescing is disabled
+   */
+  public long getCoalescingTimeout() {
+    return coalescingTimeout;
   }
 
   /**
-   * Create stream that will be cached after it is read
+   * Set whether a {@link CacheRequest} serves cached responses that are still
+   * fresh without making a request
+   * <p>
+   * A response is fresh until the 'max-age' of the 'Cache-Control' header it
+   * was received or last revalidated with has elapsed. Responses without a
+   * 'max-age' are always revalidated. This is enabled by default.
    *
-   * @param connection
-   * @return input stream that will be cached, null if cannot be cached
+   * @param serveFresh
+   * @return this cache
    */
-  public InputStream put(final URLConnection connection) {
-    return put(connection, false);
+  public EtagCache setServeFresh(final boolean serveFresh) {
+    this.serveFresh = serveFresh;
+    return this;
   }
 
   /**
-   * Create stream that will be cached after it is read
+   * Are cached responses that are still fresh served without making a request?
    *
-   * @param connection
-   * @param flushCacheOnClose
-   *          true to flush the cache when the returned response is closed
-   * @return input stream that will be cached, null if cannot be cached
+   * @return true if served without a request, false if always revalidated
    */
-  public InputStream put(final URLConnection connection,
-      final boolean flushCacheOnClose) {
-    final String key = getKey(connection);
-    if (key == null)
-      return null;
+  public boolean isServeFresh() {
+    return serveFresh;
+  }
 
-    if (!isCacheable((HttpURLConnection) connection))
+  /**
+   * Set the number of threads that revalidate stale responses in the
+   * background
+   * <p>
+   * When enabled, a {@link CacheRequest} for a response that is in the cache
+   * serves it immediately without waiting for the server. The response is then
+   * revalidated in the background with the same request headers, and the
+   * cache is updated if the server returns a new response. Later requests get
+   * the updated response. When too many revalidations are already queued,
+   * requests revalidate in the foreground as if this were disabled.
+   *
+   * @param threads
+   *          number of threads, 0 to always revalidate before responding
+   * @return this cache
+   */
+  public EtagCache setStaleWhileRevalidate(final int threads) {
+    final Revalidator previous = revalidator;
+    revalidator = threads > 0 ? new Revalidator(threads) : null;
+    if (previous != null)
       try {
-        cache.remove(key);
-        return null;
-      } catch (IOException e) {
-        return null;
+        previous.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
+    return this;
+  }
 
-    String etag = connection.getHeaderField(HEADER_ETAG);
-    if (etag == null || etag.length() == 0)
-      return null;
+  /**
+   * Set how stale a cached response can be and still be served when
+   * revalidating it fails
+   * <p>
+   * When enabled, a {@link CacheRequest} whose request fails, times out, or
+   * gets a 5xx response serves the cached response instead if it stopped
+   * being fresh no longer than the given time ago. Cached responses are also
+   * kept instead of removed when a 5xx response is received.
+   *
+   * @param window
+   *          milliseconds, 0 to disable
+   * @return this cache
+   */
+  public EtagCache setStaleIfError(final long window) {
+    staleIfError = window;
+    return this;
+  }
 
-    Editor editor;
-    try {
-      editor = cache.edit(key);
-    } catch (IOException e) {
-      return null;
-    }
-    if (editor == null)
-      return null;
+  /**
+   * Can the given cached response be served when revalidating it failed?
+   *
+   * @param response
+   * @return true if within the stale-if-error window
+   */
+  boolean isUsableOnError(final CacheResponse response) {
+    final long window = staleIfError;
+    return window > 0
+        && response.getStaleness(System.currentTimeMillis()) <= window;
+  }
 
-    try {
-      editor.set(ETAG, etag);
-    } catch (IOException e) {
-      try {
-        editor.abort();
-      } catch (IOException ignored) {
-        // Ignored
-      }
-      return null;
-    }
+  /**
+   * Revalidate the cached response for the given connection in the background
+   *
+   * @param connection
+   *          unconnected connection whose request headers are copied
+   * @return true if revalidating in the background, false if the caller must
+   *         revalidate
+   */
+  boolean revalidate(final URLConnection connection,
+      final CacheResponse response, final Map<String, String> hidden) {
+    final Revalidator revalidator = this.revalidator;
+    if (revalidator == null)
+      return false;
 
-    InputStream input;
-    try {
-      input = connection.getInputStream();
-      if (!(input instanceof InflaterInputStream)
-          && ENCODING_GZIP.equals(connection
-              .getHeaderField(HEADER_CONTENT_ENCODING)))
-        input = new GZIPInputStream(input);
-    } catch (IOException e) {
-      return null;
-    }
-    OutputStream output;
-    try {
-      output = editor.newOutputStream(BODY);
-    } catch (IOException e) {
-      return null;
-    }
+    final URL url = connection.getURL();
+    final Map<String, List<String>> headers = connection
+        .getRequestProperties();
+    final int connectTimeout = connection.getConnectTimeout();
+    final int readTimeout = connection.getReadTimeout();
+    return revalidator.submit(response.key, new Runnable() {
 
-    if (output != null)
-      return new CacheStream(input, output, editor, this, flushCacheOnClose);
+      public void run() {
+        try {
+          final CacheRequest request = newRequest(EtagCache.this, url,
+              headers, connectTimeout, readTimeout);
+          for (Entry<String, String> header : hidden.entrySet())
+            request.header(header.getKey(), header.getValue());
+          request.revalidate();
+        } catch (HttpRequestException ignored) {
+          // Ignored
+        } catch (IOException ignored) {
+          // Ignored
+        }
+      }
+    });
+  }
+
+  /**
+   * Create a GET request made in the background with the given request
+   * headers and timeouts
+   *
+   * @param cache
+   * @param url
+   * @param headers
+   * @param connectTimeout
+   * @param readTimeout
+   * @return request
+   * @throws HttpRequestException
+   */
+  static CacheRequest newRequest(final EtagCache cache, final URL url,
+      final Map<String, List<String>> headers, final int connectTimeout,
+      final int readTimeout) throws HttpRequestException {
+    final CacheRequest request = new CacheRequest(url, METHOD_GET, cache);
+    final URLConnection connection = request.getConnection();
+    for (Entry<String, List<String>> header : headers.entrySet())
+      for (String value : header.getValue())
+        connection.addRequestProperty(header.getKey(), value);
+    connection.setConnectTimeout(connectTimeout);
+    connection.setReadTimeout(readTimeout);
+    return request;
+  }
+
+  /**
+   * Flush the disk caches in groups of committed entries instead of after
+   * every entry
+   * <p>
+   * When enabled, a background thread flushes the disk caches once the given
+   * number of entries have been committed or once the first unflushed entry
+   * has waited the given delay, whichever comes first. Entries stored for
+   * requests that flush to disk after every response are flushed with the
+   * next group instead, so at most the given delay of committed entries can
+   * be lost on a crash.
+   *
+   * @param maxCommits
+   *          number of commits that trigger a flush, 0 to disable
+   * @param maxDelay
+   *          maximum milliseconds a commit waits to be flushed, 0 to disable
+   * @return this cache
+   */
+  public EtagCache setGroupFlush(final int maxCommits, final long maxDelay) {
+    final GroupFlusher previous = flusher;
+    flusher = maxCommits > 0 && maxDelay > 0 ? new GroupFlusher(this,
+        maxCommits, maxDelay) : null;
+    if (previous != null)
+      try {
+        previous.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    return this;
+  }
+
+  /**
+   * Set how many of the most frequently requested URLs have their cached
+   * responses revalidated in the background before they become stale
+   * <p>
+   * Every period the cached responses of the hottest URLs that would stop
+   * being fresh within the next two periods are revalidated with the request
+   * headers of the first request counted for the URL, so that requests for
+   * them are served from the cache without waiting for the server. Request
+   * counts are halved every period. Responses without a 'max-age' are
+   * revalidated every period.
+   *
+   * @param count
+   *          number of URLs to refresh, 0 to disable
+   * @param period
+   *          milliseconds between refreshes
+   * @return this cache
+   */
+  public EtagCache setHotRefresh(final int count, final long period) {
+    final HotRefresher previous = refresher;
+    refresher = count > 0 && period > 0 ? new HotRefresher(this, count,
+        period) : null;
+    if (previous != null)
+      try {
+        previous.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    return this;
+  }
+
+  /**
+   * Count a request made for the given connection towards refreshing its
+   * cached response
+   *
+   * @param connection
+   *          unconnected connection
+   */
+  void registerRequest(final URLConnection connection) {
+    final HotRefresher refresher = this.refresher;
+    if (refresher == null)
+      return;
+    final String key = getKey(connection);
+    if (key != null)
+      refresher.record(key, connection);
+  }
+
+  /**
+   * Join the request in flight for the given key
+   *
+   * @param key
+   * @return request already in flight or null if the caller is
+   *         now the request in flight and must call {@link #endFlight(String)}
+   */
+  Flight joinFlight(final String key) {
+    return flights.putIfAbsent(key, new Flight());
+  }
+
+  /**
+   * Set the time after which requests stop waiting for the request in flight
+   * for the given key
+   *
+   * @param key
+   * @param deadline
+   *          time in milliseconds, {@link Long#MAX_VALUE} for no deadline
+   */
+  void setFlightDeadline(final String key, final long deadline) {
+    final Flight flight = flights.get(key);
+    if (flight != null)
+      flight.deadline = deadline;
+  }
+
+  /**
+   * Wait for the request in flight to end
+   *
+   * @param flight
+   * @return true if ended, false if timed out or interrupted
+   */
+  boolean awaitFlight(final Flight flight) {
+    final long timeout = System.currentTimeMillis() + coalescingTimeout;
+    try {
+      long remaining;
+      while ((remaining = Math.min(timeout, flight.deadline)
+          - System.currentTimeMillis()) > 0)
+        if (flight.done.await(Math.min(remaining, FLIGHT_POLL),
+            TimeUnit.MILLISECONDS))
+          return true;
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * End the request in flight for the given key and release the requests
+   * waiting for it
+   *
+   * @param key
+   */
+  void endFlight(final String key) {
+    final Flight flight = flights.remove(key);
+    if (flight != null)
+      flight.done.countDown();
+  }
+
+  /**
+   * Get current size of the in-memory tier
+   *
+   * @return size, 0 when the memory tier is disabled
+   */
+  public long getMemorySize() {
+    return memory != null ? memory.size() : 0;
+  }
+
+  /**
+   * Reset stats tracked for cache hits and misses
+   *
+   * @return this cache
+   */
+  public EtagCache resetStats() {
+    stats.reset();
+    return this;
+  }
+
+  /**
+   * Get cached response for connection
+   *
+   * @param connection
+   * @return etag or null if not in cache or connection isn't cacheable
+   */
+  public CacheResponse get(final URLConnection connection) {
+    return get(connection, null);
+  }
+
+  /**
+   * Get cached response for connection
+   *
+   * @param connection
+   * @param headers
+   *          values of the request headers by lowercase name as set before
+   *          connecting, null if not known
+   * @return etag or null if not in cache or connection isn't cacheable
+   */
+  CacheResponse get(final URLConnection connection,
+      final Map<String, String> headers) {
+    final String key = getKey(connection);
+    if (key == null)
+      return null;
+
+    final long start = System.nanoTime();
+    final CacheResponse response = get(key, connection, headers);
+    registerLookup(System.nanoTime() - start, response != null);
+    return response;
+  }
+
+  private CacheResponse get(final String key) {
+    return get(key, null, null);
+  }
+
+  /**
+   * Get the variant of a response that varies by the given request headers
+   *
+   * @param vary
+   * @param connection
+   * @param headers
+   * @return response or null if the variant is not stored
+   */
+  private CacheResponse getVariant(final String vary,
+      final URLConnection connection, final Map<String, String> headers) {
+    if (connection == null)
+      return null;
+    final String variant = getVariantKey(connection, vary, headers);
+    return variant != null ? get(variant) : null;
+  }
+
+  private CacheResponse get(final String key, final URLConnection connection,
+      final Map<String, String> headers) {
+    if (removals.containsKey(key))
+      return null;
+    if (memory != null) {
+      final MemoryCache.Entry entry = memory.get(key);
+      if (entry != null && entry.vary != null)
+        return getVariant(entry.vary, connection, headers);
+      if (entry != null)
+        try {
+          return new CacheResponse(key, entry.eTag, entry.encoding,
+              entry.body, entry.date, entry.expires);
+        } catch (IOException e) {
+          memory.remove(key);
+        }
+    }
+
+    final Store.Snapshot snapshot;
+    try {
+      snapshot = shard(key).get(key);
+    } catch (IOException e) {
+      return null;
+    }
+    if (snapshot == null)
+      return null;
+
+    try {
+      final Metadata metadata = snapshot.getMetadata();
+      if (metadata.vary != null) {
+        snapshot.close();
+        if (memory != null)
+          registerEvictions(memory.put(key,
+              new MemoryCache.Entry(metadata.vary)));
+        return getVariant(metadata.vary, connection, headers);
+      }
+
+      final long length = snapshot.getBodyLength();
+      // Partial bodies are only served by resuming their download
+      if (length < metadata.length) {
+        snapshot.close();
+        return null;
+      }
+      if (memory == null || length > memory.getMaxEntrySize())
+        return new CacheResponse(this, key, metadata, snapshot);
+
+      final byte[] bytes = readFully(snapshot.getBody(), (int) length);
+      snapshot.close();
+      if (!isIntact(bytes, metadata)) {
+        evict(key);
+        return null;
+      }
+      registerEvictions(memory.put(key, new MemoryCache.Entry(metadata.eTag,
+          metadata.encoding, bytes, metadata.date, metadata.getExpires())));
+      return new CacheResponse(key, metadata.eTag, metadata.encoding, bytes,
+          metadata.date, metadata.getExpires());
+    } catch (IOException e) {
+      snapshot.close();
+      return null;
+    }
+  }
+
+  /**
+   * Wrap stored body in a stream that decodes it
+   *
+   * @param body
+   * @param encoding
+   * @return decoded stream
+   * @throws IOException
+   */
+  private static InputStream decode(final InputStream body,
+      final String encoding) throws IOException {
+    if (Metadata.ENCODING_GZIP.equals(encoding))
+      return new GZIPInputStream(body);
+    else if (Metadata.ENCODING_DEFLATE.equals(encoding))
+      return new InflaterInputStream(body);
+    else
+      return body;
+  }
+
+  /**
+   * Does the given stored body match the checksum it was stored with?
+   *
+   * @param bytes
+   * @param metadata
+   * @return true if matching or stored without a checksum, false otherwise
+   */
+  private static boolean isIntact(final byte[] bytes, final Metadata metadata) {
+    if (metadata.checksum < 0)
+      return true;
+
+    final CRC32 checksum = new CRC32();
+    if (Metadata.ENCODING_DEFLATE.equals(metadata.encoding))
+      try {
+        final InputStream input = decode(new ByteArrayInputStream(bytes),
+            metadata.encoding);
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1)
+          checksum.update(buffer, 0, read);
+      } catch (IOException e) {
+        return false;
+      }
     else
+      checksum.update(bytes);
+    return checksum.getValue() == metadata.checksum;
+  }
+
+  /**
+   * Evict the entry for the given key because its stored body is corrupt
+   *
+   * @param key
+   */
+  void evict(final String key) {
+    removeLater(key);
+  }
+
+  private static byte[] readFully(final InputStream input, final int length)
+      throws IOException {
+    final byte[] bytes = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      final int read = input.read(bytes, offset, length - offset);
+      if (read == -1)
+        throw new IOException("Unexpected end of cached body");
+      offset += read;
+    }
+    return bytes;
+  }
+
+  /**
+   * Create stream that will be cached after it is read
+   *
+   * @param connection
+   * @return input stream that will be cached, null if cannot be cached
+   */
+  public InputStream put(final URLConnection connection) {
+    return put(connection, false);
+  }
+
+  /**
+   * Create stream that will be cached after it is read
+   *
+   * @param connection
+   * @param flushCacheOnClose
+   *          true to flush the cache when the returned response is closed
+   * @return input stream that will be cached, null if cannot be cached
+   */
+  public InputStream put(final URLConnection connection,
+      final boolean flushCacheOnClose) {
+    return put(connection, flushCacheOnClose, null);
+  }
+
+  /**
+   * Create stream that will be cached after it is read
+   * <p>
+   * Responses with a 'Vary' header are stored under a key derived from the
+   * values of the listed request headers and a marker recording the header
+   * names is stored under the key of the URL.
+   *
+   * @param connection
+   * @param flushCacheOnClose
+   *          true to flush the cache when the returned response is closed
+   * @param headers
+   *          values of the request headers by lowercase name as set before
+   *          connecting, null if not known
+   * @return input stream that will be cached, null if cannot be cached
+   */
+  InputStream put(final URLConnection connection,
+      final boolean flushCacheOnClose, final Map<String, String> headers) {
+    final String primary = getKey(connection);
+    if (primary == null)
+      return null;
+
+    final HttpURLConnection http = (HttpURLConnection) connection;
+    final String vary = Metadata.parseVary(connection
+        .getHeaderField(HEADER_VARY));
+    if (!isCacheable(http) || "*".equals(vary)) {
+      // Keep the cached response for the stale-if-error window
+      if (staleIfError > 0 && isServerError(http))
+        return null;
+      // Entries were already removed when the negative response was first
+      // remembered
+      if (!rememberNegative(primary, http))
+        removeLater(primary);
+      return null;
+    }
+    negatives.remove(primary);
+    cancelRemoval(primary);
+
+    final String key;
+    if (vary != null) {
+      key = getVariantKey(connection, vary, headers);
+      if (key == null)
+        return null;
+    } else
+      key = primary;
+    cancelRemoval(key);
+    if (memory != null)
+      memory.remove(key);
+
+    String etag = connection.getHeaderField(HEADER_ETAG);
+    if (etag == null || etag.length() == 0)
+      return null;
+    if (vary != null && !putMarker(primary, vary, etag))
+      return null;
+
+    Store.Editor editor;
+    try {
+      editor = shard(key).edit(key);
+    } catch (IOException e) {
+      return null;
+    }
+    if (editor == null) {
+      registerEditorBusy();
+      return null;
+    }
+
+    InputStream input;
+    OutputStream output;
+    long length = -1;
+    final Metadata metadata = new Metadata(etag).setFreshness(
+        connection.getHeaderField(HEADER_CACHE_CONTROL),
+        connection.getHeaderFieldInt(HEADER_AGE, 0),
+        System.currentTimeMillis());
+    // The date is only needed to serve the response fresh or stale
+    if (metadata.maxAge < 0 && staleIfError == 0)
+      metadata.date = 0;
+    try {
+      input = connection.getInputStream();
+      final boolean inflated = input instanceof InflaterInputStream;
+      final boolean gzip = !inflated
+          && ENCODING_GZIP.equals(connection
+              .getHeaderField(HEADER_CONTENT_ENCODING));
+      if (storeCompressed)
+        metadata.encoding = gzip ? Metadata.ENCODING_GZIP
+            : Metadata.ENCODING_DEFLATE;
+      else if (gzip)
+        input = new GZIPInputStream(input);
+      // Bodies read as received are checked against their length before
+      // being committed and are resumed with a range request if stored as-is
+      if (!inflated && (storeCompressed || !gzip))
+        length = parseLength(connection.getHeaderField(HEADER_CONTENT_LENGTH));
+      if (length >= MIN_RESUME_LENGTH && gzip == storeCompressed
+          && vary == null && !etag.startsWith("W/"))
+        metadata.length = length;
+
+      output = editor.newOutputStream(metadata);
+    } catch (IOException e) {
+      abort(editor);
+      return null;
+    }
+
+    return newStream(input, output, editor, flushCacheOnClose, key, primary,
+        metadata, length);
+  }
+
+  /**
+   * Create stream that stores the given body as it is read
+   *
+   * @param input
+   * @param output
+   * @param editor
+   * @param flushCacheOnClose
+   * @param key
+   * @param primary
+   * @param metadata
+   * @param length
+   *          length of the body as received, -1 if unknown
+   * @return uncompressed input stream, null if it cannot be read
+   */
+  private InputStream newStream(final InputStream input, OutputStream output,
+      final Store.Editor editor, final boolean flushCacheOnClose,
+      final String key, final String primary, final Metadata metadata,
+      final long length) {
+    if (!Metadata.ENCODING_GZIP.equals(metadata.encoding)) {
+      if (Metadata.ENCODING_DEFLATE.equals(metadata.encoding))
+        output = new DeflaterOutputStream(output);
+      return new CacheStream(input, output, editor, this, flushCacheOnClose,
+          key, primary, metadata, null, length);
+    }
+
+    // Store the body as received and only uncompress it for the reader
+    final CacheStream stream = new CacheStream(input, output, editor, this,
+        flushCacheOnClose, key, primary, metadata, Metadata.ENCODING_GZIP,
+        length);
+    try {
+      return new GZIPInputStream(stream) {
+
+        @Override
+        public int read(final byte[] buffer, final int offset,
+            final int count) throws IOException {
+          final int read = super.read(buffer, offset, count);
+          // The gzip trailer may be read without reaching the end of stream
+          if (read == -1)
+            stream.finish();
+          return read;
+        }
+      };
+    } catch (IOException e) {
+      stream.abort();
+      return null;
+    }
+  }
+
+  /**
+   * Parse a 'Content-Length' header value
+   *
+   * @param value
+   * @return length or -1 if missing or invalid
+   */
+  static long parseLength(final String value) {
+    if (value == null)
+      return -1;
+    try {
+      final long length = Long.parseLong(value.trim());
+      return length >= 0 ? length : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Get the partially downloaded response stored for the given connection
+   *
+   * @param connection
+   * @return response whose body is the stored bytes as-is, null if no partial
+   *         response is stored
+   */
+  CacheResponse getPartial(final URLConnection connection) {
+    final String key = getKey(connection);
+    if (key == null || removals.containsKey(key))
+      return null;
+
+    final Store.Snapshot snapshot;
+    try {
+      snapshot = shard(key).get(key);
+    } catch (IOException e) {
+      return null;
+    }
+    if (snapshot == null)
+      return null;
+
+    final Metadata metadata = snapshot.getMetadata();
+    if (metadata.vary == null && snapshot.getBodyLength() < metadata.length)
+      try {
+        return new CacheResponse(this, key, metadata, snapshot);
+      } catch (IOException ignored) {
+        // Ignored
+      }
+    snapshot.close();
+    return null;
+  }
+
+  /**
+   * Is the given response the rest of the given partial response?
+   *
+   * @param connection
+   * @param partial
+   * @return true if it can be appended to the stored bytes, false otherwise
+   */
+  static boolean isRemainder(final URLConnection connection,
+      final CacheResponse partial) {
+    final String eTag = connection.getHeaderField(HEADER_ETAG);
+    if (eTag != null && !eTag.equals(partial.eTag))
+      return false;
+    final String range = connection.getHeaderField(HEADER_CONTENT_RANGE);
+    if (range == null)
+      return false;
+    final long total = partial.completeLength;
+    return range.trim().equals(
+        "bytes " + partial.getStoredLength() + '-' + (total - 1) + '/'
+            + total);
+  }
+
+  /**
+   * Create stream of the complete body of a partial response followed by the
+   * rest of it from the given connection
+   * <p>
+   * The complete body is stored as it is read, replacing the partial response.
+   * The partial response is closed when the returned stream is closed.
+   *
+   * @param connection
+   *          connection whose response is the remainder of the partial
+   *          response
+   * @param partial
+   * @param flushCacheOnClose
+   *          true to flush the cache when the returned response is closed
+   * @return uncompressed input stream, null if it cannot be read
+   */
+  InputStream resume(final URLConnection connection,
+      final CacheResponse partial, final boolean flushCacheOnClose) {
+    final InputStream input;
+    try {
+      input = new SequenceInputStream(partial.stored,
+          connection.getInputStream()) {
+
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            partial.close();
+          }
+        }
+      };
+    } catch (IOException e) {
+      partial.close();
+      return null;
+    }
+
+    final String key = partial.key;
+    negatives.remove(key);
+    cancelRemoval(key);
+    if (memory != null)
+      memory.remove(key);
+    final Metadata metadata = new Metadata(partial.eTag).setFreshness(
+        connection.getHeaderField(HEADER_CACHE_CONTROL),
+        connection.getHeaderFieldInt(HEADER_AGE, 0),
+        System.currentTimeMillis());
+    if (metadata.maxAge < 0 && staleIfError == 0)
+      metadata.date = 0;
+    metadata.encoding = partial.encoding;
+    metadata.length = partial.completeLength;
+
+    Store.Editor editor = null;
+    OutputStream output = null;
+    try {
+      editor = shard(key).edit(key);
+      if (editor != null)
+        output = editor.newOutputStream(metadata);
+      else
+        registerEditorBusy();
+    } catch (IOException e) {
+      if (editor != null)
+        abort(editor);
+      editor = null;
+    }
+
+    if (editor != null)
+      return newStream(input, output, editor, flushCacheOnClose, key, key,
+          metadata, metadata.length);
+
+    // Serve the complete body without storing it
+    try {
+      return decode(input, metadata.encoding);
+    } catch (IOException e) {
+      try {
+        input.close();
+      } catch (IOException ignored) {
+        // Ignored
+      }
       return null;
+    }
+  }
+
+  /**
+   * Update the freshness of a cached response that the server reported as not
+   * modified
+   * <p>
+   * Only the stored metadata is rewritten, the stored body is left as-is.
+   *
+   * @param connection
+   * @param response
+   */
+  void refresh(final URLConnection connection, final CacheResponse response) {
+    final String key = response.key;
+
+    final Metadata fresh = new Metadata(response.eTag).setFreshness(
+        connection.getHeaderField(HEADER_CACHE_CONTROL),
+        connection.getHeaderFieldInt(HEADER_AGE, 0),
+        System.currentTimeMillis());
+    // Nothing to update when neither response could be served fresh, unless
+    // half the stale-if-error window has passed since the last update
+    if (fresh.getExpires() == 0 && response.expires == 0
+        && (staleIfError == 0 || fresh.date - response.date < staleIfError / 2))
+      return;
+
+    final Metadata metadata;
+    try {
+      final Store store = shard(key);
+      final Store.Snapshot snapshot = store.get(key);
+      if (snapshot == null)
+        return;
+      metadata = snapshot.getMetadata().copy();
+      snapshot.close();
+      if (!metadata.eTag.equals(response.eTag))
+        return;
+
+      metadata.date = fresh.date;
+      metadata.maxAge = fresh.maxAge;
+      if (!store.update(key, metadata))
+        return;
+    } catch (IOException e) {
+      return;
+    }
+
+    if (memory != null) {
+      final MemoryCache.Entry entry = memory.get(key);
+      if (entry != null && entry.eTag.equals(metadata.eTag))
+        registerEvictions(memory.put(key, new MemoryCache.Entry(entry.eTag,
+            entry.encoding, entry.body, metadata.date,
+            metadata.getExpires())));
+    }
+  }
+
+  /**
+   * Remember a 404 (Not Found) or 410 (Gone) response
+   *
+   * @param key
+   * @param connection
+   * @return true if already remembered, false otherwise
+   */
+  private boolean rememberNegative(final String key,
+      final HttpURLConnection connection) {
+    final long ttl = negativeTtl;
+    if (ttl <= 0)
+      return false;
+
+    final int code;
+    try {
+      code = connection.getResponseCode();
+    } catch (IOException e) {
+      return false;
+    }
+    if (code != HTTP_NOT_FOUND && code != HTTP_GONE)
+      return false;
+    return negatives.put(key, code, System.currentTimeMillis() + ttl);
+  }
+
+  /**
+   * Get the negative status code remembered for the given connection
+   *
+   * @param connection
+   * @return 404, 410, or 0 if none is remembered
+   */
+  int getNegative(final URLConnection connection) {
+    if (negativeTtl <= 0)
+      return 0;
+    final String key = getKey(connection);
+    return key != null ? negatives.get(key, System.currentTimeMillis()) : 0;
+  }
+
+  /**
+   * Set how long 404 (Not Found) and 410 (Gone) responses are remembered
+   * <p>
+   * Requests made through a {@link CacheRequest} for a URL whose response was
+   * remembered are answered with the same status code and an empty body
+   * without making a request. Up to {@link NegativeCache#MAX_ENTRIES} URLs
+   * are remembered in memory.
+   *
+   * @param ttl
+   *          milliseconds, 0 to disable
+   * @return this cache
+   */
+  public EtagCache setNegativeTtl(final long ttl) {
+    negativeTtl = ttl;
+    return this;
+  }
+
+  /**
+   * Remove the entry for the given key with the next batch of removals
+   * <p>
+   * The entry is no longer returned by lookups once this method returns.
+   *
+   * @param key
+   */
+  private void removeLater(final String key) {
+    if (memory != null)
+      memory.remove(key);
+    if (removals.putIfAbsent(key, Boolean.TRUE) != null
+        || removals.size() < REMOVE_BATCH)
+      return;
+
+    final WriteBehind writer = writeBehind;
+    if (writer != null)
+      writer.execute(new Runnable() {
+
+        public void run() {
+          removePending();
+        }
+      });
+    else
+      removePending();
+  }
+
+  /**
+   * Apply the pending removals to the stores
+   */
+  private void removePending() {
+    synchronized (removals) {
+      for (String key : removals.keySet()) {
+        if (!removals.containsKey(key))
+          continue;
+        try {
+          shard(key).remove(key);
+        } catch (IOException ignored) {
+          // Ignored
+        }
+        removals.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Cancel the pending removal of the entry for the given key
+   * <p>
+   * Removals being applied are waited for so that an entry written after this
+   * method returns is never removed by them.
+   *
+   * @param key
+   */
+  private void cancelRemoval(final String key) {
+    if (!removals.containsKey(key))
+      return;
+    synchronized (removals) {
+      removals.remove(key);
+    }
+  }
+
+  /**
+   * Store the marker of a response that varies by the given request headers
+   *
+   * @param key
+   * @param vary
+   * @param eTag
+   * @return true if stored, false otherwise
+   */
+  private boolean putMarker(final String key, final String vary,
+      final String eTag) {
+    if (memory != null) {
+      final MemoryCache.Entry entry = memory.get(key);
+      if (entry != null && vary.equals(entry.vary))
+        return true;
+    }
+
+    final Store store = shard(key);
+    try {
+      final Store.Snapshot snapshot = store.get(key);
+      if (snapshot != null) {
+        final boolean stored = vary.equals(snapshot.getMetadata().vary);
+        snapshot.close();
+        if (stored)
+          return true;
+      }
+
+      final Store.Editor editor = store.edit(key);
+      if (editor == null)
+        return false;
+      final Metadata metadata = new Metadata(eTag);
+      metadata.vary = vary;
+      try {
+        editor.newOutputStream(metadata).close();
+        editor.commit();
+      } catch (IOException e) {
+        abort(editor);
+        return false;
+      }
+    } catch (IOException e) {
+      return false;
+    }
+
+    if (memory != null)
+      registerEvictions(memory.put(key, new MemoryCache.Entry(vary)));
+    return true;
+  }
+
+  private static void abort(final Store.Editor editor) {
+    try {
+      editor.abort();
+    } catch (IOException ignored) {
+      // Ignored
+    }
+  }
+
+  /**
+   * Result of a request made through
+   * {@link EtagCache#fetch(URL, Executor, CacheCallback)} that notifies a
+   * callback once completed
+   */
+  private static class CacheFuture extends FutureTask<CacheResult> {
+
+    private final URL url;
+
+    private final CacheCallback callback;
+
+    CacheFuture(final URL url, final CacheRequest request,
+        final CacheCallback callback) {
+      super(new Callable<CacheResult>() {
+
+        public CacheResult call() throws Exception {
+          final byte[] body = request.bytes();
+          return new CacheResult(url, request.code(), request.cached(),
+              request.eTag(), body);
+        }
+      });
+      this.url = url;
+      this.callback = callback;
+    }
+
+    /**
+     * Complete with the given failure
+     *
+     * @param error
+     */
+    void fail(final Exception error) {
+      setException(error);
+    }
+
+    @Override
+    protected void done() {
+      if (callback == null || isCancelled())
+        return;
+
+      final CacheResult result;
+      try {
+        result = get();
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        callback.onError(url, cause instanceof Exception ? (Exception) cause
+            : e);
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      callback.onResult(result);
+    }
+  }
+
+  /**
+   * Request the given URL without blocking the calling thread on the network
+   * <p>
+   * The cache is looked up on the calling thread and responses that can be
+   * served from it without making a request, because they are fresh or are
+   * being revalidated in the background, complete before this method
+   * returns. Otherwise the conditional request is made and the body is read
+   * on the given executor, which can be any executor such as a shared pool.
+   * Responses are only looked up on the calling thread when request
+   * coalescing is disabled so that it never waits for other requests.
+   *
+   * @param url
+   * @param executor
+   * @param callback
+   *          callback notified once completed, may be null
+   * @return future for the result
+   */
+  public Future<CacheResult> fetch(final URL url, final Executor executor,
+      final CacheCallback callback) {
+    final CacheRequest request;
+    try {
+      request = CacheRequest.get(url, this);
+    } catch (HttpRequestException e) {
+      final CacheFuture failed = new CacheFuture(url, null, callback);
+      failed.fail(e);
+      return failed;
+    }
+
+    final CacheFuture future = new CacheFuture(url, request, callback);
+    if (coalescingTimeout == 0 && request.isLocal())
+      future.run();
+    else
+      executor.execute(future);
+    return future;
+  }
+
+  /**
+   * Request all the given URLs using a new pool of the given number of threads
+   * <p>
+   * The pool is shut down once every request has been submitted.
+   *
+   * @param urls
+   * @param threads
+   * @return futures for the results, in the same order as the URLs
+   */
+  public List<Future<CacheResult>> fetchAll(final Collection<URL> urls,
+      final int threads) {
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      return fetchAll(urls, executor);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Request all the given URLs concurrently on the given executor
+   * <p>
+   * This only submits one {@link CacheRequest} per URL, whose body is read
+   * completely so that it is stored in this cache. Each request looks up,
+   * stores and flushes its entry exactly as it would if made on its own.
+   *
+   * @param urls
+   * @param executor
+   * @return futures for the results, in the same order as the URLs
+   */
+  public List<Future<CacheResult>> fetchAll(final Collection<URL> urls,
+      final ExecutorService executor) {
+    final List<Future<CacheResult>> results = new ArrayList<Future<CacheResult>>(
+        urls.size());
+    for (final URL url : urls)
+      results.add(executor.submit(new Callable<CacheResult>() {
+
+        public CacheResult call() throws Exception {
+          final CacheRequest request = CacheRequest.get(url, EtagCache.this);
+          final byte[] body = request.bytes();
+          return new CacheResult(url, request.code(), request.cached(),
+              request.eTag(), body);
+        }
+      }));
+    return results;
   }
 
   public void flush() throws IOException {
-    cache.flush();
+    removePending();
+    for (Store shard : shards)
+      shard.flush();
+  }
+
+  /**
+   * Flush the disk cache that stores the entry for the given key
+   *
+   * @param key
+   * @throws IOException
+   */
+  private void flush(final String key) throws IOException {
+    shard(key).flush();
+  }
+
+  /**
+   * Flush the entry committed for the given key now or with the next group of
+   * commits
+   *
+   * @param key
+   * @param flush
+   *          true if the entry must be flushed even when group flushing is not
+   *          enabled
+   */
+  private void committed(final String key, final boolean flush) {
+    final GroupFlusher flusher = this.flusher;
+    if (flusher != null)
+      flusher.committed();
+    else if (flush)
+      try {
+        flush(key);
+      } catch (IOException ignored) {
+        // Ignored
+      }
+  }
+
+  /**
+   * Close this cache
+   * <p>
+   * Waits for any running background refreshes and revalidations and pending
+   * background writes to complete before closing the underlying disk caches.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    final HotRefresher refresher = this.refresher;
+    this.refresher = null;
+    if (refresher != null)
+      try {
+        refresher.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+    final Revalidator revalidator = this.revalidator;
+    this.revalidator = null;
+    if (revalidator != null)
+      try {
+        revalidator.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+    final WriteBehind writer = writeBehind;
+    writeBehind = null;
+    if (writer != null)
+      try {
+        writer.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+    final GroupFlusher flusher = this.flusher;
+    this.flusher = null;
+    if (flusher != null)
+      try {
+        flusher.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+    removePending();
+    IOException failure = null;
+    for (Store shard : shards)
+      try {
+        shard.close();
+      } catch (IOException e) {
+        if (failure == null)
+          failure = e;
+      }
+    if (failure != null)
+      throw failure;
   }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.io.IOException;
+
+/**
+ * Background flusher that groups the flushes of committed cache entries
+ * <p>
+ * A single daemon thread flushes the cache once the given number of entries
+ * have been committed since the last flush or once the first of them has
+ * waited the given delay, whichever comes first. Commits never wait for a
+ * flush to complete.
+ */
+class GroupFlusher implements Runnable {
+
+  private final EtagCache cache;
+
+  private final int maxCommits;
+
+  private final long maxDelay;
+
+  private final Thread thread;
+
+  private int pending;
+
+  private long firstCommit;
+
+  private boolean closed;
+
+  /**
+   * Create flusher
+   *
+   * @param cache
+   * @param maxCommits
+   *          number of commits that trigger a flush
+   * @param maxDelay
+   *          maximum milliseconds a commit waits to be flushed
+   */
+  GroupFlusher(final EtagCache cache, final int maxCommits,
+      final long maxDelay) {
+    this.cache = cache;
+    this.maxCommits = maxCommits;
+    this.maxDelay = maxDelay;
+    thread = new Thread(this, "EtagCache flusher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Record that an entry was committed and needs to be flushed
+   */
+  synchronized void committed() {
+    if (pending++ == 0) {
+      firstCommit = System.currentTimeMillis();
+      notifyAll();
+    } else if (pending >= maxCommits)
+      notifyAll();
+  }
+
+  /**
+   * Wait until the pending commits should be flushed
+   *
+   * @return true to flush, false if closed and no commits are pending
+   * @throws InterruptedException
+   */
+  private synchronized boolean await() throws InterruptedException {
+    while (!closed) {
+      if (pending == 0)
+        wait();
+      else {
+        final long remaining = firstCommit + maxDelay
+            - System.currentTimeMillis();
+        if (pending >= maxCommits || remaining <= 0) {
+          pending = 0;
+          return true;
+        }
+        wait(remaining);
+      }
+    }
+    final boolean flush = pending > 0;
+    pending = 0;
+    return flush;
+  }
+
+  public void run() {
+    try {
+      while (await())
+        try {
+          cache.flush();
+        } catch (IOException ignored) {
+          // Ignored
+        }
+    } catch (InterruptedException ignored) {
+      // Ignored
+    }
+  }
+
+  /**
+   * Flush any pending commits and stop flushing
+   *
+   * @throws InterruptedException
+   */
+  void shutdown() throws InterruptedException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    thread.join();
+  }
+}
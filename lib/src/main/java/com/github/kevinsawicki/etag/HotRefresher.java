@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background refresher of the cached responses of the most frequently
+ * requested URLs
+ * <p>
+ * Requests are counted per URL and the counts are halved after every refresh
+ * so that URLs that stop being requested cool down. Every period the cached
+ * responses of the hottest URLs that would become stale within the next two
+ * periods are revalidated one at a time on a single daemon thread.
+ */
+class HotRefresher {
+
+  /**
+   * Maximum number of URLs whose requests are counted
+   */
+  static final int MAX_TRACKED = 4096;
+
+  /**
+   * Request count and request details of a URL
+   */
+  private static class Access {
+
+    final URL url;
+
+    final Map<String, List<String>> headers;
+
+    final int connectTimeout;
+
+    final int readTimeout;
+
+    final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Count when the URLs were last sorted
+     */
+    int sorted;
+
+    Access(final URLConnection connection) {
+      url = connection.getURL();
+      headers = connection.getRequestProperties();
+      connectTimeout = connection.getConnectTimeout();
+      readTimeout = connection.getReadTimeout();
+    }
+  }
+
+  private static final Comparator<Access> HOTTEST = new Comparator<Access>() {
+
+    public int compare(final Access access1, final Access access2) {
+      final int count1 = access1.sorted;
+      final int count2 = access2.sorted;
+      return count1 > count2 ? -1 : count1 == count2 ? 0 : 1;
+    }
+  };
+
+  private final ConcurrentHashMap<String, Access> accesses =
+      new ConcurrentHashMap<String, Access>();
+
+  private final ScheduledExecutorService executor = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        public Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "EtagCache refresher");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final EtagCache cache;
+
+  private final int count;
+
+  private final long period;
+
+  /**
+   * Create refresher
+   *
+   * @param cache
+   * @param count
+   *          number of URLs to refresh
+   * @param period
+   *          milliseconds between refreshes
+   */
+  HotRefresher(final EtagCache cache, final int count, final long period) {
+    this.cache = cache;
+    this.count = count;
+    this.period = period;
+    executor.scheduleWithFixedDelay(new Runnable() {
+
+      public void run() {
+        refresh();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Count a request for the entry with the given key
+   *
+   * @param key
+   * @param connection
+   *          unconnected connection whose request details are copied the
+   *          first time its URL is counted
+   */
+  void record(final String key, final URLConnection connection) {
+    Access access = accesses.get(key);
+    if (access == null) {
+      if (accesses.size() >= MAX_TRACKED)
+        return;
+      access = new Access(connection);
+      final Access existing = accesses.putIfAbsent(key, access);
+      if (existing != null)
+        access = existing;
+    }
+    access.count.incrementAndGet();
+  }
+
+  /**
+   * Get the hottest URLs and halve all request counts
+   *
+   * @return URLs, hottest first
+   */
+  private List<Access> cool() {
+    final List<Access> sorted = new ArrayList<Access>(accesses.values());
+    for (Access access : sorted)
+      access.sorted = access.count.get();
+    Collections.sort(sorted, HOTTEST);
+    final List<Access> hottest = new ArrayList<Access>(count);
+    for (Access access : sorted) {
+      if (hottest.size() == count || access.sorted == 0)
+        break;
+      hottest.add(access);
+    }
+
+    for (Entry<String, Access> entry : accesses.entrySet()) {
+      final AtomicInteger requests = entry.getValue().count;
+      int current;
+      do
+        current = requests.get();
+      while (!requests.compareAndSet(current, current / 2));
+      if (current / 2 == 0)
+        accesses.remove(entry.getKey(), entry.getValue());
+    }
+    return hottest;
+  }
+
+  private void refresh() {
+    // Refreshes can run late so responses expiring by the refresh after the
+    // next one are revalidated as well
+    final long until = System.currentTimeMillis() + 2 * period;
+    for (Access access : cool()) {
+      if (Thread.currentThread().isInterrupted())
+        return;
+      try {
+        EtagCache.newRequest(cache, access.url, access.headers,
+            access.connectTimeout, access.readTimeout).refresh(until);
+      } catch (HttpRequestException ignored) {
+        // Ignored
+      } catch (IOException ignored) {
+        // Ignored
+      }
+    }
+  }
+
+  /**
+   * Stop refreshing and wait for a running refresh to complete
+   *
+   * @throws InterruptedException
+   */
+  void shutdown() throws InterruptedException {
+    executor.shutdownNow();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+}
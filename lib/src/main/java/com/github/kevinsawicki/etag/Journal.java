@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reader of the journal a disk cache keeps of its entries
+ * <p>
+ * The journal records every entry that is written, read, and removed in the
+ * order it happened, so replaying it gives the order entries were last used
+ * in.
+ */
+class Journal {
+
+  private static final String FILE = "journal";
+
+  private static final int HEADER_LINES = 5;
+
+  /**
+   * Read the entries in the journal in the given directory
+   *
+   * @param directory
+   * @return map of stored keys to the total length of their values, most
+   *         recently used first
+   * @throws IOException
+   */
+  static Map<String, Long> read(final File directory) throws IOException {
+    final LinkedHashMap<String, Long> entries =
+        new LinkedHashMap<String, Long>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(new File(directory, FILE)), "US-ASCII"));
+    try {
+      for (int i = 0; i < HEADER_LINES; i++)
+        if (reader.readLine() == null)
+          return entries;
+
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] parts = line.split(" ");
+        if (parts.length < 2)
+          continue;
+
+        final String key = parts[1];
+        final Long previous = entries.remove(key);
+        if ("CLEAN".equals(parts[0]))
+          try {
+            long length = 0;
+            for (int i = 2; i < parts.length; i++)
+              length += Long.parseLong(parts[i]);
+            entries.put(key, length);
+          } catch (NumberFormatException ignored) {
+            // Ignored
+          }
+        else if ("READ".equals(parts[0]) && previous != null)
+          entries.put(key, previous);
+        else if ("DIRTY".equals(parts[0]) && previous != null)
+          // Previous value stays readable until the edit completes
+          entries.put(key, previous);
+      }
+    } finally {
+      reader.close();
+    }
+
+    final List<String> keys = new ArrayList<String>(entries.keySet());
+    Collections.reverse(keys);
+    final Map<String, Long> recent = new LinkedHashMap<String, Long>();
+    for (String key : keys)
+      recent.put(key, entries.get(key));
+    return recent;
+  }
+}
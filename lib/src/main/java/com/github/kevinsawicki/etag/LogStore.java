@@ -0,0 +1,1076 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Store that appends entries with small bodies to large segment files and
+ * keeps entries with larger bodies in a {@link SingleFileStore}
+ * <p>
+ * The location of every entry is held in an in-memory index that is rebuilt
+ * by replaying the segments when the store is opened. Each record in a
+ * segment ends with a CRC32 checksum so a record torn by a crash is detected
+ * and the segment is truncated before it. Removed entries are recorded as
+ * tombstones. Once less than half of the sealed segments is still in use, the
+ * entries still in use are copied to the end of the log on a background
+ * thread and the sealed segments are deleted.
+ */
+class LogStore implements Store {
+
+  /**
+   * Largest body stored in a segment
+   */
+  static final int SMALL_BODY = 4096;
+
+  /**
+   * Size at which a new segment is started
+   */
+  static final long SEGMENT_SIZE = 4L * 1024L * 1024L;
+
+  private static final int MAGIC = 0x45544c31;
+
+  private static final byte TYPE_ENTRY = 1;
+
+  private static final byte TYPE_TOMBSTONE = 2;
+
+  /**
+   * Length of the magic, record length, and type at the start of a record
+   */
+  private static final int RECORD_HEADER = 9;
+
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private static final String LARGE_DIRECTORY = "large";
+
+  /**
+   * Segment file that records are appended to
+   * <p>
+   * A thread interrupted while using the channel closes it for every other
+   * thread, so the channel is reopened when found closed and operations that
+   * failed because of another thread's interrupt are retried.
+   */
+  private static class Segment {
+
+    final long id;
+
+    final File file;
+
+    private FileChannel channel;
+
+    private boolean closed;
+
+    long length;
+
+    long live;
+
+    int readers;
+
+    boolean retired;
+
+    Segment(final long id, final File file) throws IOException {
+      this.id = id;
+      this.file = file;
+      channel = new RandomAccessFile(file, "rw").getChannel();
+      length = channel.size();
+    }
+
+    /**
+     * Get the channel of this segment, reopening it if it was closed by an
+     * interrupted thread
+     *
+     * @return channel
+     * @throws IOException
+     */
+    synchronized FileChannel channel() throws IOException {
+      if (!channel.isOpen()) {
+        if (closed)
+          throw new ClosedChannelException();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+      }
+      return channel;
+    }
+
+    int read(final ByteBuffer buffer, final long position) throws IOException {
+      while (true)
+        try {
+          return channel().read(buffer, position);
+        } catch (ClosedByInterruptException e) {
+          throw e;
+        } catch (ClosedChannelException e) {
+          // Closed by another thread that was interrupted
+        }
+    }
+
+    int write(final ByteBuffer buffer, final long position)
+        throws IOException {
+      while (true)
+        try {
+          return channel().write(buffer, position);
+        } catch (ClosedByInterruptException e) {
+          throw e;
+        } catch (ClosedChannelException e) {
+          // Closed by another thread that was interrupted
+        }
+    }
+
+    void force() throws IOException {
+      while (true)
+        try {
+          channel().force(false);
+          return;
+        } catch (ClosedByInterruptException e) {
+          throw e;
+        } catch (ClosedChannelException e) {
+          // Closed by another thread that was interrupted
+        }
+    }
+
+    synchronized void close() throws IOException {
+      closed = true;
+      channel.close();
+    }
+  }
+
+  /**
+   * Location of an entry in the index
+   */
+  private static class Location {
+
+    /**
+     * Segment holding the record, null if the entry is in the large store
+     */
+    Segment segment;
+
+    long offset;
+
+    long bodyOffset;
+
+    /**
+     * Size of the record or of the file in the large store
+     */
+    long size;
+
+    final Metadata metadata;
+
+    final int bodyLength;
+
+    boolean removed;
+
+    Location(final Metadata metadata, final int bodyLength) {
+      this.metadata = metadata;
+      this.bodyLength = bodyLength;
+    }
+  }
+
+  /**
+   * Stream over a range of a segment read with absolute positions
+   */
+  private static class SegmentInputStream extends InputStream {
+
+    private final Segment segment;
+
+    private long position;
+
+    private final long end;
+
+    SegmentInputStream(final Segment segment, final long position,
+        final long length) {
+      this.segment = segment;
+      this.position = position;
+      end = position + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int count)
+        throws IOException {
+      if (position >= end)
+        return -1;
+      if (count == 0)
+        return 0;
+
+      final int length = (int) Math.min(count, end - position);
+      final int read = segment.read(ByteBuffer.wrap(buffer, offset, length),
+          position);
+      if (read > 0)
+        position += read;
+      return read;
+    }
+
+    @Override
+    public long skip(final long count) {
+      final long skipped = Math.max(0, Math.min(count, end - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+  }
+
+  private class LogSnapshot implements Snapshot {
+
+    private final Metadata metadata;
+
+    private final Segment segment;
+
+    private final long offset;
+
+    private final long length;
+
+    private final InputStream body;
+
+    private boolean closed;
+
+    LogSnapshot(final Metadata metadata, final Segment segment,
+        final long offset, final long length) {
+      this.metadata = metadata;
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      body = new SegmentInputStream(segment, offset, length);
+    }
+
+    public Metadata getMetadata() {
+      return metadata;
+    }
+
+    public InputStream getBody() {
+      return body;
+    }
+
+    public long getBodyLength() {
+      return length;
+    }
+
+    public FileChannel getChannel() {
+      try {
+        return segment.channel();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    public long getBodyOffset() {
+      return offset;
+    }
+
+    public void close() {
+      synchronized (LogStore.this) {
+        if (closed)
+          return;
+        closed = true;
+        segment.readers--;
+        if (segment.retired && segment.readers == 0)
+          delete(segment);
+      }
+    }
+  }
+
+  private class LogEditor implements Editor {
+
+    private final String key;
+
+    private Metadata metadata;
+
+    private ByteArrayOutputStream small;
+
+    private Editor large;
+
+    private OutputStream largeOutput;
+
+    private boolean done;
+
+    LogEditor(final String key) {
+      this.key = key;
+    }
+
+    private void spill() throws IOException {
+      large = files.edit(key);
+      if (large == null)
+        throw new IOException("Entry is being edited " + key);
+      largeOutput = large.newOutputStream(metadata);
+      small.writeTo(largeOutput);
+      small = null;
+    }
+
+    public OutputStream newOutputStream(final Metadata metadata)
+        throws IOException {
+      if (this.metadata != null)
+        throw new IllegalStateException("Body stream already opened");
+
+      this.metadata = metadata;
+      small = new ByteArrayOutputStream();
+      return new OutputStream() {
+
+        @Override
+        public void write(final int value) throws IOException {
+          write(new byte[] { (byte) value }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset,
+            final int count) throws IOException {
+          if (small != null && small.size() + count > SMALL_BODY)
+            spill();
+          if (small != null)
+            small.write(buffer, offset, count);
+          else
+            largeOutput.write(buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+          if (largeOutput != null)
+            largeOutput.close();
+        }
+      };
+    }
+
+    public void commit() throws IOException {
+      if (done)
+        return;
+      if (metadata == null) {
+        abort();
+        throw new IllegalStateException("No body written for " + key);
+      }
+
+      try {
+        final Metadata committed = metadata.copy();
+        if (small != null)
+          append(key, committed, small.toByteArray());
+        else {
+          largeOutput.close();
+          shadow(key);
+          large.commit();
+          installLarge(key, committed);
+        }
+      } catch (IOException e) {
+        abort();
+        throw e;
+      }
+      done = true;
+    }
+
+    public void abort() throws IOException {
+      if (done)
+        return;
+      done = true;
+
+      try {
+        if (large != null)
+          large.abort();
+      } finally {
+        release(key);
+      }
+    }
+  }
+
+  /**
+   * Open store in the given directory
+   * <p>
+   * The directory must not be used for anything else.
+   *
+   * @param directory
+   * @param maxSize
+   * @return store
+   * @throws IOException
+   */
+  static LogStore open(final File directory, final long maxSize)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Unable to create directory " + directory);
+    return new LogStore(directory, maxSize);
+  }
+
+  private final File directory;
+
+  private final long maxSize;
+
+  private final SingleFileStore files;
+
+  private final LinkedHashMap<String, Location> index = new LinkedHashMap<String, Location>(
+      16, 0.75F, true);
+
+  private final List<Segment> segments = new ArrayList<Segment>();
+
+  private final Set<String> editing = new HashSet<String>();
+
+  /**
+   * Segments written to since the last flush other than the active segment
+   */
+  private final Set<Segment> unflushed = new HashSet<Segment>();
+
+  private final ExecutorService compactor = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+
+        public Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "EtagCache compactor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private Segment active;
+
+  private long size;
+
+  private boolean compacting;
+
+  private boolean closed;
+
+  private LogStore(final File directory, final long maxSize)
+      throws IOException {
+    this.directory = directory;
+    this.maxSize = maxSize;
+
+    // Entries are only evicted by this store
+    files = SingleFileStore.open(new File(directory, LARGE_DIRECTORY),
+        Long.MAX_VALUE);
+    try {
+      recover();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Rebuild the index from the large store and the segments
+   *
+   * @throws IOException
+   */
+  private synchronized void recover() throws IOException {
+    final Map<String, Long> largeEntries = files.getEntries();
+    final List<String> largeKeys = new ArrayList<String>(largeEntries.keySet());
+    for (int i = largeKeys.size() - 1; i >= 0; i--) {
+      final String key = largeKeys.get(i);
+      final Store.Snapshot snapshot = files.get(key);
+      if (snapshot == null)
+        continue;
+      final Location location = new Location(snapshot.getMetadata(), -1);
+      snapshot.close();
+      location.size = largeEntries.get(key);
+      index.put(key, location);
+      size += location.size;
+    }
+
+    final String[] names = directory.list();
+    if (names == null)
+      throw new IOException("Unable to list " + directory);
+    final List<Long> ids = new ArrayList<Long>();
+    for (String name : names)
+      if (name.endsWith(SEGMENT_SUFFIX))
+        try {
+          ids.add(Long.valueOf(name.substring(0, name.length()
+              - SEGMENT_SUFFIX.length())));
+        } catch (NumberFormatException ignored) {
+          // Ignored
+        }
+    final Long[] sorted = ids.toArray(new Long[ids.size()]);
+    Arrays.sort(sorted);
+    final Map<String, Location> shadowed = new HashMap<String, Location>();
+    for (Long id : sorted)
+      replay(openSegment(id), shadowed);
+    // Entries written to the log after a large entry replace it
+    for (String key : shadowed.keySet())
+      files.remove(key);
+
+    if (segments.isEmpty())
+      openSegment(1);
+    active = segments.get(segments.size() - 1);
+    trim();
+    scheduleCompaction();
+  }
+
+  private Segment openSegment(final long id) throws IOException {
+    final Segment segment = new Segment(id, new File(directory, id
+        + SEGMENT_SUFFIX));
+    segments.add(segment);
+    return segment;
+  }
+
+  /**
+   * Add the records in the given segment to the index
+   *
+   * @param segment
+   * @param shadowed
+   *          large entries replaced by a record in the log
+   * @throws IOException
+   */
+  private void replay(final Segment segment,
+      final Map<String, Location> shadowed) throws IOException {
+    final byte[] bytes = new byte[(int) segment.length];
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining())
+      if (segment.read(buffer, buffer.position()) == -1)
+        break;
+
+    int offset = 0;
+    final CRC32 crc = new CRC32();
+    while (offset + RECORD_HEADER + 4 <= bytes.length) {
+      final ByteBuffer record = ByteBuffer.wrap(bytes, offset, bytes.length
+          - offset);
+      final int length = record.getInt(offset + 4);
+      if (record.getInt(offset) != MAGIC || length < RECORD_HEADER + 4
+          || length > bytes.length - offset)
+        break;
+      crc.reset();
+      crc.update(bytes, offset, length - 4);
+      if ((int) crc.getValue() != record.getInt(offset + length - 4))
+        break;
+
+      final DataInputStream input = new DataInputStream(
+          new ByteArrayInputStream(bytes, offset + RECORD_HEADER,
+              length - RECORD_HEADER - 4));
+      final byte type = bytes[offset + 8];
+      final String key = input.readUTF();
+      if (type == TYPE_ENTRY) {
+        final Metadata metadata = Metadata.read(input);
+        final int bodyLength = input.readInt();
+        final Location location = new Location(metadata, bodyLength);
+        location.segment = segment;
+        location.offset = offset;
+        location.size = length;
+        location.bodyOffset = offset + length - 4 - bodyLength;
+        segment.live += length;
+        size += length;
+        final Location previous = index.put(key, location);
+        if (previous != null) {
+          size -= previous.size;
+          if (previous.segment != null)
+            previous.segment.live -= previous.size;
+          else
+            shadowed.put(key, previous);
+        }
+      } else if (type == TYPE_TOMBSTONE) {
+        final Location previous = index.get(key);
+        if (previous != null && previous.segment != null) {
+          index.remove(key);
+          size -= previous.size;
+          previous.segment.live -= previous.size;
+          // Tombstones written before a large entry is committed restore it
+          final Location large = shadowed.remove(key);
+          if (large != null) {
+            index.put(key, large);
+            size += large.size;
+          }
+        }
+      }
+      offset += length;
+    }
+
+    // Drop a record torn by a crash along with anything after it
+    if (offset < bytes.length) {
+      segment.channel().truncate(offset);
+      segment.length = offset;
+    }
+  }
+
+  private void delete(final Segment segment) {
+    try {
+      segment.close();
+    } catch (IOException ignored) {
+      // Ignored
+    }
+    segment.file.delete();
+  }
+
+  private synchronized void checkOpen() {
+    if (closed)
+      throw new IllegalStateException("Store is closed");
+  }
+
+  private synchronized void release(final String key) {
+    editing.remove(key);
+  }
+
+  /**
+   * Replace the location of the given key in the index
+   *
+   * @param key
+   * @param location
+   * @throws IOException
+   */
+  private void replace(final String key, final Location location)
+      throws IOException {
+    final Location previous = index.put(key, location);
+    size += location.size;
+    if (previous != null)
+      discard(key, previous, previous.segment == null
+          && location.segment != null);
+  }
+
+  /**
+   * Remove the given entry from the index
+   *
+   * @param key
+   * @param location
+   * @throws IOException
+   */
+  private void remove(final String key, final Location location)
+      throws IOException {
+    index.remove(key);
+    if (location.segment != null)
+      write(record(TYPE_TOMBSTONE, key, null, null));
+    discard(key, location, true);
+  }
+
+  /**
+   * Release the space held by an entry that is no longer in the index
+   *
+   * @param key
+   * @param location
+   * @param removeLarge
+   *          true to remove the entry from the large store
+   * @throws IOException
+   */
+  private void discard(final String key, final Location location,
+      final boolean removeLarge) throws IOException {
+    location.removed = true;
+    size -= location.size;
+    if (location.segment == null) {
+      if (removeLarge)
+        files.remove(key);
+      return;
+    }
+
+    location.segment.live -= location.size;
+    if (location.segment != active)
+      scheduleCompaction();
+  }
+
+  /**
+   * Remove the record of the given entry from the log before a large entry
+   * replaces it
+   *
+   * @param key
+   * @throws IOException
+   */
+  private synchronized void shadow(final String key) throws IOException {
+    checkOpen();
+    final Location location = index.get(key);
+    if (location != null && location.segment != null)
+      remove(key, location);
+  }
+
+  private void trim() throws IOException {
+    final Iterator<Map.Entry<String, Location>> iterator = index.entrySet()
+        .iterator();
+    while (size > maxSize && iterator.hasNext()) {
+      final Map.Entry<String, Location> entry = iterator.next();
+      if (editing.contains(entry.getKey()))
+        continue;
+      iterator.remove();
+      final Location location = entry.getValue();
+      if (location.segment != null)
+        write(record(TYPE_TOMBSTONE, entry.getKey(), null, null));
+      discard(entry.getKey(), location, true);
+    }
+  }
+
+  /**
+   * Encode a record
+   *
+   * @param type
+   * @param key
+   * @param metadata
+   * @param body
+   * @return record
+   * @throws IOException
+   */
+  private static byte[] record(final byte type, final String key,
+      final Metadata metadata, final byte[] body) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        RECORD_HEADER + 128 + (body != null ? body.length : 0));
+    final DataOutputStream output = new DataOutputStream(bytes);
+    output.writeInt(MAGIC);
+    output.writeInt(0);
+    output.writeByte(type);
+    output.writeUTF(key);
+    if (type == TYPE_ENTRY) {
+      metadata.write(output);
+      output.writeInt(body.length);
+      output.write(body);
+    }
+    output.writeInt(0);
+    output.close();
+
+    final byte[] record = bytes.toByteArray();
+    final ByteBuffer buffer = ByteBuffer.wrap(record);
+    buffer.putInt(4, record.length);
+    final CRC32 crc = new CRC32();
+    crc.update(record, 0, record.length - 4);
+    buffer.putInt(record.length - 4, (int) crc.getValue());
+    return record;
+  }
+
+  /**
+   * Append record to the active segment
+   *
+   * @param record
+   * @return offset of the record in the active segment
+   * @throws IOException
+   */
+  private long write(final byte[] record) throws IOException {
+    if (active.length > 0 && active.length + record.length > SEGMENT_SIZE) {
+      final long previous = active.id;
+      unflushed.add(active);
+      active = openSegment(previous + 1);
+      scheduleCompaction();
+    }
+
+    final long offset = active.length;
+    final ByteBuffer buffer = ByteBuffer.wrap(record);
+    while (buffer.hasRemaining())
+      active.write(buffer, offset + buffer.position());
+    active.length += record.length;
+    return offset;
+  }
+
+  /**
+   * Append entry to the log and add it to the index
+   *
+   * @param key
+   * @param metadata
+   * @param body
+   * @throws IOException
+   */
+  private synchronized void append(final String key, final Metadata metadata,
+      final byte[] body) throws IOException {
+    try {
+      checkOpen();
+      final byte[] record = record(TYPE_ENTRY, key, metadata, body);
+      final long offset = write(record);
+      final Location location = new Location(metadata, body.length);
+      location.segment = active;
+      location.offset = offset;
+      location.size = record.length;
+      location.bodyOffset = offset + record.length - 4 - body.length;
+      active.live += record.length;
+      replace(key, location);
+      trim();
+    } finally {
+      editing.remove(key);
+    }
+  }
+
+  /**
+   * Add entry committed to the large store to the index
+   *
+   * @param key
+   * @param metadata
+   * @throws IOException
+   */
+  private synchronized void installLarge(final String key,
+      final Metadata metadata) throws IOException {
+    try {
+      final Location location = new Location(metadata, -1);
+      location.size = files.length(key);
+      replace(key, location);
+      trim();
+    } finally {
+      editing.remove(key);
+    }
+  }
+
+  private void scheduleCompaction() {
+    if (compacting || closed || segments.size() < 2)
+      return;
+
+    long length = 0;
+    long live = 0;
+    for (Segment segment : segments)
+      if (segment != active) {
+        length += segment.length;
+        live += segment.live;
+      }
+    if (live * 2 >= length)
+      return;
+
+    compacting = true;
+    try {
+      compactor.execute(new Runnable() {
+
+        public void run() {
+          try {
+            compact();
+          } catch (IOException ignored) {
+            // Ignored
+          } finally {
+            synchronized (LogStore.this) {
+              compacting = false;
+            }
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      compacting = false;
+    }
+  }
+
+  /**
+   * Copy the entries still in use in the sealed segments to the end of the
+   * log and delete the sealed segments
+   *
+   * @throws IOException
+   */
+  private void compact() throws IOException {
+    final List<Segment> sealed = new ArrayList<Segment>();
+    final List<Location> live = new ArrayList<Location>();
+    final List<String> keys = new ArrayList<String>();
+    final Set<Segment> targets = new HashSet<Segment>();
+    synchronized (this) {
+      if (closed)
+        return;
+      for (Segment segment : segments)
+        if (segment != active)
+          sealed.add(segment);
+      for (Map.Entry<String, Location> entry : index.entrySet())
+        if (sealed.contains(entry.getValue().segment)) {
+          keys.add(entry.getKey());
+          live.add(entry.getValue());
+        }
+    }
+
+    for (int i = 0; i < live.size(); i++) {
+      final Location location = live.get(i);
+      // Sealed segments are never written to so they can be read unlocked
+      final byte[] record = new byte[(int) location.size];
+      final ByteBuffer buffer = ByteBuffer.wrap(record);
+      while (buffer.hasRemaining())
+        if (location.segment.read(buffer, location.offset
+            + buffer.position()) == -1)
+          throw new IOException("Unexpected end of segment");
+
+      synchronized (this) {
+        if (closed)
+          return;
+        if (location.removed)
+          continue;
+        final long offset = write(record);
+        location.segment.live -= location.size;
+        location.segment = active;
+        location.bodyOffset = offset + location.bodyOffset - location.offset;
+        location.offset = offset;
+        active.live += location.size;
+        targets.add(active);
+      }
+    }
+
+    // Copied records must be on disk before the segments they were copied
+    // from are deleted
+    for (Segment segment : targets)
+      segment.force();
+
+    synchronized (this) {
+      for (Segment segment : sealed) {
+        segments.remove(segment);
+        segment.retired = true;
+        if (segment.readers == 0)
+          delete(segment);
+      }
+    }
+  }
+
+  public Snapshot get(final String key) throws IOException {
+    final Location location;
+    synchronized (this) {
+      checkOpen();
+      location = index.get(key);
+      if (location == null)
+        return null;
+      if (location.segment != null) {
+        location.segment.readers++;
+        return new LogSnapshot(location.metadata.copy(), location.segment,
+            location.bodyOffset, location.bodyLength);
+      }
+    }
+    return files.get(key);
+  }
+
+  public Editor edit(final String key) throws IOException {
+    synchronized (this) {
+      checkOpen();
+      if (!editing.add(key))
+        return null;
+    }
+    return new LogEditor(key);
+  }
+
+  public boolean update(final String key, final Metadata metadata)
+      throws IOException {
+    final Location location;
+    synchronized (this) {
+      checkOpen();
+      location = index.get(key);
+      if (location == null || !editing.add(key))
+        return false;
+    }
+
+    if (location.segment == null)
+      try {
+        if (!files.update(key, metadata))
+          return false;
+        synchronized (this) {
+          location.metadata.date = metadata.date;
+          location.metadata.maxAge = metadata.maxAge;
+        }
+        return true;
+      } finally {
+        release(key);
+      }
+
+    // Entries in the log are appended again with the new metadata
+    final Snapshot snapshot;
+    synchronized (this) {
+      if (location.removed) {
+        editing.remove(key);
+        return false;
+      }
+      location.segment.readers++;
+      snapshot = new LogSnapshot(location.metadata, location.segment,
+          location.bodyOffset, location.bodyLength);
+    }
+    final byte[] body = new byte[location.bodyLength];
+    try {
+      final InputStream input = snapshot.getBody();
+      int offset = 0;
+      while (offset < body.length) {
+        final int read = input.read(body, offset, body.length - offset);
+        if (read == -1)
+          throw new IOException("Unexpected end of segment");
+        offset += read;
+      }
+    } catch (IOException e) {
+      release(key);
+      throw e;
+    } finally {
+      snapshot.close();
+    }
+    append(key, metadata.copy(), body);
+    return true;
+  }
+
+  public synchronized boolean remove(final String key) throws IOException {
+    checkOpen();
+    if (editing.contains(key))
+      return false;
+
+    final Location location = index.get(key);
+    if (location == null)
+      return false;
+    remove(key, location);
+    return true;
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  public synchronized Map<String, Long> getEntries() {
+    final List<Map.Entry<String, Location>> stored = new ArrayList<Map.Entry<String, Location>>(
+        index.entrySet());
+    final Map<String, Long> recent = new LinkedHashMap<String, Long>();
+    for (int i = stored.size() - 1; i >= 0; i--)
+      recent.put(stored.get(i).getKey(), stored.get(i).getValue().size);
+    return recent;
+  }
+
+  public void flush() throws IOException {
+    final List<Segment> written;
+    synchronized (this) {
+      checkOpen();
+      written = new ArrayList<Segment>(unflushed);
+      unflushed.clear();
+      written.add(active);
+    }
+    for (Segment segment : written)
+      try {
+        segment.force();
+      } catch (ClosedByInterruptException e) {
+        throw e;
+      } catch (ClosedChannelException e) {
+        // Deleted by a compaction that forced the records copied out of it
+      }
+    files.flush();
+  }
+
+  /**
+   * Get the number of segments other than the active segment written to
+   * since the last flush
+   *
+   * @return count
+   */
+  synchronized int getUnflushedCount() {
+    return unflushed.size();
+  }
+
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+    }
+    compactor.shutdown();
+    try {
+      compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (this) {
+      for (Segment segment : segments)
+        segment.close();
+    }
+    files.close();
+  }
+}
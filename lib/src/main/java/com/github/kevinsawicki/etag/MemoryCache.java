@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of ETags and small bodies that sits in front of the
+ * disk cache
+ * <p>
+ * Entries are evicted in least-recently-used order once the total size of the
+ * stored bodies exceeds the maximum size.
+ */
+class MemoryCache {
+
+  /**
+   * Entry in the memory cache
+   */
+  static class Entry {
+
+    /**
+     * ETag of response
+     */
+    final String eTag;
+
+    /**
+     * Encoding of body, null if not encoded
+     */
+    final String encoding;
+
+    /**
+     * Body of response
+     */
+    final byte[] body;
+
+    /**
+     * Time in milliseconds the response was generated or last revalidated, 0
+     * if unknown
+     */
+    final long date;
+
+    /**
+     * Time in milliseconds the response stops being fresh, 0 if never fresh
+     */
+    final long expires;
+
+    /**
+     * Names of the request headers the variants of the response are stored
+     * by, null if this entry holds a response
+     */
+    final String vary;
+
+    /**
+     * Create entry
+     *
+     * @param eTag
+     * @param encoding
+     * @param body
+     * @param date
+     * @param expires
+     */
+    Entry(final String eTag, final String encoding, final byte[] body,
+        final long date, final long expires) {
+      this.eTag = eTag;
+      this.encoding = encoding;
+      this.body = body;
+      this.date = date;
+      this.expires = expires;
+      vary = null;
+    }
+
+    /**
+     * Create marker entry of a response that varies by the given request
+     * headers
+     *
+     * @param vary
+     */
+    Entry(final String vary) {
+      eTag = "";
+      encoding = null;
+      body = new byte[0];
+      date = 0;
+      expires = 0;
+      this.vary = vary;
+    }
+
+    /**
+     * @return approximate size of entry in bytes
+     */
+    long size() {
+      return body.length + eTag.length()
+          + (vary != null ? vary.length() : 0);
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+      16, 0.75F, true);
+
+  private final long maxSize;
+
+  private long size;
+
+  /**
+   * Create memory cache
+   *
+   * @param maxSize
+   */
+  MemoryCache(final long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Get the largest body this cache will store
+   * <p>
+   * A single entry is limited to an eighth of the overall size so that one
+   * large response does not flush every other entry out of memory.
+   *
+   * @return maximum body size in bytes
+   */
+  long getMaxEntrySize() {
+    return maxSize / 8;
+  }
+
+  /**
+   * Get the maximum size of the cache
+   *
+   * @return size in bytes
+   */
+  long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Get current size of the cache
+   *
+   * @return size
+   */
+  synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Get entry for key
+   *
+   * @param key
+   * @return entry or null if not in memory
+   */
+  synchronized Entry get(final String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Put entry for key, evicting least recently used entries as needed
+   *
+   * @param key
+   * @param entry
+   * @return number of other entries evicted
+   */
+  synchronized int put(final String key, final Entry entry) {
+    if (entry.size() > getMaxEntrySize()) {
+      remove(key);
+      return 0;
+    }
+
+    final Entry previous = entries.put(key, entry);
+    if (previous != null)
+      size -= previous.size();
+    size += entry.size();
+
+    final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet()
+        .iterator();
+    int evicted = 0;
+    while (size > maxSize && iterator.hasNext()) {
+      size -= iterator.next().getValue().size();
+      iterator.remove();
+      evicted++;
+    }
+    return evicted;
+  }
+
+  /**
+   * Remove entry for key
+   *
+   * @param key
+   * @return this cache
+   */
+  synchronized MemoryCache remove(final String key) {
+    final Entry previous = entries.remove(key);
+    if (previous != null)
+      size -= previous.size();
+    return this;
+  }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Metadata stored alongside a cached body
+ * <p>
+ * Metadata is stored as text with the ETag on the first line followed by one
+ * <code>name: value</code> line per field that is set. Entries written before
+ * a field existed are read as not having that field, and unknown fields are
+ * ignored.
+ */
+public class Metadata {
+
+  /**
+   * Encoding of a body stored as written by {@link java.util.zip.GZIPOutputStream}
+   */
+  public static final String ENCODING_GZIP = "gzip";
+
+  /**
+   * Encoding of a body stored as written by
+   * {@link java.util.zip.DeflaterOutputStream}
+   */
+  public static final String ENCODING_DEFLATE = "deflate";
+
+  private static final String FIELD_ENCODING = "Encoding";
+
+  private static final byte BINARY_NONE = 0;
+
+  private static final byte BINARY_GZIP = 1;
+
+  private static final byte BINARY_DEFLATE = 2;
+
+  private static final String FIELD_DATE = "Date";
+
+  private static final String FIELD_MAX_AGE = "Max-Age";
+
+  private static final String FIELD_VARY = "Vary";
+
+  private static final String FIELD_LENGTH = "Length";
+
+  private static final String FIELD_CHECKSUM = "Checksum";
+
+  /**
+   * Parse the names of the request headers a response varies by from a 'Vary'
+   * header value
+   *
+   * @param vary
+   * @return lowercase names separated by commas, '*' if the response varies
+   *         by more than request headers, or null if the response does not
+   *         vary
+   */
+  static String parseVary(final String vary) {
+    if (vary == null)
+      return null;
+
+    final StringBuilder names = new StringBuilder();
+    for (String name : vary.split(",")) {
+      name = name.trim().toLowerCase(Locale.US);
+      if (name.length() == 0)
+        continue;
+      if ("*".equals(name))
+        return name;
+      if (names.length() > 0)
+        names.append(',');
+      names.append(name);
+    }
+    return names.length() > 0 ? names.toString() : null;
+  }
+
+  /**
+   * Parse the freshness lifetime from a 'Cache-Control' header value
+   *
+   * @param cacheControl
+   * @return lifetime in seconds or -1 if the response must be revalidated
+   */
+  static long parseMaxAge(final String cacheControl) {
+    if (cacheControl == null)
+      return -1;
+
+    long maxAge = -1;
+    for (String directive : cacheControl.split(",")) {
+      directive = directive.trim().toLowerCase(Locale.US);
+      if ("no-cache".equals(directive) || "no-store".equals(directive))
+        return -1;
+      if (!directive.startsWith("max-age="))
+        continue;
+
+      String value = directive.substring(8);
+      if (value.length() > 1 && value.charAt(0) == '"'
+          && value.charAt(value.length() - 1) == '"')
+        value = value.substring(1, value.length() - 1);
+      try {
+        maxAge = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return maxAge;
+  }
+
+  /**
+   * Parse metadata
+   *
+   * @param value
+   * @return metadata or null if value has no ETag
+   */
+  public static Metadata parse(final String value) {
+    if (value == null)
+      return null;
+
+    final String[] lines = value.split("\n");
+    if (lines[0].length() == 0)
+      return null;
+
+    final Metadata metadata = new Metadata(lines[0]);
+    for (int i = 1; i < lines.length; i++) {
+      final int separator = lines[i].indexOf(": ");
+      if (separator == -1)
+        continue;
+
+      final String name = lines[i].substring(0, separator);
+      final String field = lines[i].substring(separator + 2);
+      try {
+        if (FIELD_ENCODING.equals(name))
+          metadata.encoding = field;
+        else if (FIELD_DATE.equals(name))
+          metadata.date = Long.parseLong(field);
+        else if (FIELD_MAX_AGE.equals(name))
+          metadata.maxAge = Long.parseLong(field);
+        else if (FIELD_VARY.equals(name))
+          metadata.vary = field;
+        else if (FIELD_LENGTH.equals(name))
+          metadata.length = Long.parseLong(field);
+        else if (FIELD_CHECKSUM.equals(name))
+          metadata.checksum = Long.parseLong(field, 16);
+      } catch (NumberFormatException ignored) {
+        // Ignored
+      }
+    }
+    return metadata;
+  }
+
+  /**
+   * Read metadata in the binary form written by {@link #write(DataOutput)}
+   *
+   * @param input
+   * @return metadata
+   * @throws IOException
+   */
+  public static Metadata read(final DataInput input) throws IOException {
+    final long date = input.readLong();
+    final long maxAge = input.readLong();
+    final byte encoding = input.readByte();
+    final Metadata metadata = new Metadata(input.readUTF());
+    metadata.date = date;
+    metadata.maxAge = maxAge;
+    if (encoding == BINARY_GZIP)
+      metadata.encoding = ENCODING_GZIP;
+    else if (encoding == BINARY_DEFLATE)
+      metadata.encoding = ENCODING_DEFLATE;
+    else if (encoding != BINARY_NONE)
+      throw new IOException("Unsupported encoding " + encoding);
+    // Unknown fields are from later versions
+    final int fields = input.readUnsignedShort();
+    for (int i = 0; i < fields; i++) {
+      final String name = input.readUTF();
+      final String field = input.readUTF();
+      try {
+        if (FIELD_VARY.equals(name))
+          metadata.vary = field;
+        else if (FIELD_LENGTH.equals(name))
+          metadata.length = Long.parseLong(field);
+        else if (FIELD_CHECKSUM.equals(name))
+          metadata.checksum = Long.parseLong(field, 16);
+      } catch (NumberFormatException ignored) {
+        // Ignored
+      }
+    }
+    return metadata;
+  }
+
+  /**
+   * ETag of response, never null
+   */
+  final String eTag;
+
+  /**
+   * Encoding of the stored body, null if stored as-is
+   */
+  String encoding;
+
+  /**
+   * Time in milliseconds the response was generated or last revalidated,
+   * corrected for its age when received, 0 if unknown
+   */
+  long date;
+
+  /**
+   * Freshness lifetime of the response in seconds, -1 if it must always be
+   * revalidated
+   */
+  long maxAge = -1;
+
+  /**
+   * Names of the request headers the variants of the response are stored by,
+   * null if this is not a marker of a varying response
+   */
+  String vary;
+
+  /**
+   * Length of the complete stored body, -1 if unknown
+   * <p>
+   * Bodies stored with fewer bytes than this are partial downloads that can
+   * be resumed.
+   */
+  long length = -1;
+
+  /**
+   * CRC32 checksum of the body as read when it was stored, -1 if unknown
+   * <p>
+   * This is the checksum of the uncompressed body for bodies stored with the
+   * deflate encoding and of the stored bytes otherwise.
+   */
+  long checksum = -1;
+
+  /**
+   * Create metadata
+   * <p>
+   * Stores outside this package create metadata with this constructor and
+   * the setters below when reading an entry back in their own format.
+   *
+   * @param eTag
+   *          ETag of response, never null
+   */
+  public Metadata(final String eTag) {
+    this.eTag = eTag;
+  }
+
+  /**
+   * @return ETag of response, never null
+   */
+  public String getETag() {
+    return eTag;
+  }
+
+  /**
+   * @return encoding of the stored body, null if stored as-is
+   */
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * @return time in milliseconds the response was generated or last
+   *         revalidated, 0 if unknown
+   */
+  public long getDate() {
+    return date;
+  }
+
+  /**
+   * @return freshness lifetime in seconds, -1 if the response must always be
+   *         revalidated
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Get the request headers the response varies by
+   * <p>
+   * Entries with this set are markers that only record which variant of the
+   * response to look up and do not hold a response.
+   *
+   * @return lowercase names separated by commas, null if not a marker
+   */
+  public String getVary() {
+    return vary;
+  }
+
+  /**
+   * @return length of the complete stored body, -1 if unknown
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * @return CRC32 checksum of the body as read when it was stored, -1 if
+   *         unknown
+   */
+  public long getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * @param encoding
+   *          {@link #ENCODING_GZIP}, {@link #ENCODING_DEFLATE}, or null if
+   *          stored as-is
+   * @return this metadata
+   */
+  public Metadata setEncoding(final String encoding) {
+    this.encoding = encoding;
+    return this;
+  }
+
+  /**
+   * @param date
+   *          time in milliseconds, 0 if unknown
+   * @return this metadata
+   */
+  public Metadata setDate(final long date) {
+    this.date = date;
+    return this;
+  }
+
+  /**
+   * @param maxAge
+   *          freshness lifetime in seconds, -1 if it must always be
+   *          revalidated
+   * @return this metadata
+   */
+  public Metadata setMaxAge(final long maxAge) {
+    this.maxAge = maxAge;
+    return this;
+  }
+
+  /**
+   * @param vary
+   *          lowercase names separated by commas, null if not a marker
+   * @return this metadata
+   */
+  public Metadata setVary(final String vary) {
+    this.vary = vary;
+    return this;
+  }
+
+  /**
+   * @param length
+   *          length of the complete stored body, -1 if unknown
+   * @return this metadata
+   */
+  public Metadata setLength(final long length) {
+    this.length = length;
+    return this;
+  }
+
+  /**
+   * @param checksum
+   *          CRC32 checksum of the body, -1 if unknown
+   * @return this metadata
+   */
+  public Metadata setChecksum(final long checksum) {
+    this.checksum = checksum;
+    return this;
+  }
+
+  /**
+   * Format metadata for storage
+   *
+   * @return formatted metadata
+   */
+  public String format() {
+    final StringBuilder value = new StringBuilder(eTag);
+    if (encoding != null)
+      value.append('\n').append(FIELD_ENCODING).append(": ").append(encoding);
+    if (date > 0)
+      value.append('\n').append(FIELD_DATE).append(": ").append(date);
+    if (maxAge >= 0)
+      value.append('\n').append(FIELD_MAX_AGE).append(": ").append(maxAge);
+    if (vary != null)
+      value.append('\n').append(FIELD_VARY).append(": ").append(vary);
+    if (length >= 0)
+      value.append('\n').append(FIELD_LENGTH).append(": ").append(length);
+    if (checksum >= 0)
+      value.append('\n').append(FIELD_CHECKSUM).append(": ")
+          .append(Long.toHexString(checksum));
+    return value.toString();
+  }
+
+  /**
+   * Write metadata in binary form
+   *
+   * @param output
+   * @throws IOException
+   */
+  public void write(final DataOutput output) throws IOException {
+    final byte binary;
+    if (encoding == null)
+      binary = BINARY_NONE;
+    else if (ENCODING_GZIP.equals(encoding))
+      binary = BINARY_GZIP;
+    else if (ENCODING_DEFLATE.equals(encoding))
+      binary = BINARY_DEFLATE;
+    else
+      throw new IOException("Unsupported encoding " + encoding);
+
+    output.writeLong(date);
+    output.writeLong(maxAge);
+    output.writeByte(binary);
+    output.writeUTF(eTag);
+    output.writeShort((vary != null ? 1 : 0) + (length >= 0 ? 1 : 0)
+        + (checksum >= 0 ? 1 : 0));
+    if (vary != null) {
+      output.writeUTF(FIELD_VARY);
+      output.writeUTF(vary);
+    }
+    if (length >= 0) {
+      output.writeUTF(FIELD_LENGTH);
+      output.writeUTF(Long.toString(length));
+    }
+    if (checksum >= 0) {
+      output.writeUTF(FIELD_CHECKSUM);
+      output.writeUTF(Long.toHexString(checksum));
+    }
+  }
+
+  /**
+   * Create a copy of this metadata
+   *
+   * @return copy
+   */
+  public Metadata copy() {
+    final Metadata copy = new Metadata(eTag);
+    copy.encoding = encoding;
+    copy.date = date;
+    copy.maxAge = maxAge;
+    copy.vary = vary;
+    copy.length = length;
+    copy.checksum = checksum;
+    return copy;
+  }
+
+  /**
+   * Set the freshness of a response from its headers
+   *
+   * @param cacheControl
+   *          value of the 'Cache-Control' header
+   * @param age
+   *          value of the 'Age' header in seconds
+   * @param received
+   *          time in milliseconds the response was received
+   * @return this metadata
+   */
+  Metadata setFreshness(final String cacheControl, final long age,
+      final long received) {
+    maxAge = parseMaxAge(cacheControl);
+    date = received - Math.max(0, age) * 1000L;
+    return this;
+  }
+
+  /**
+   * Get the time this response stops being fresh
+   *
+   * @return time in milliseconds, 0 if the response is never fresh
+   */
+  public long getExpires() {
+    if (date > 0 && maxAge >= 0)
+      return date + maxAge * 1000L;
+    else
+      return 0;
+  }
+}
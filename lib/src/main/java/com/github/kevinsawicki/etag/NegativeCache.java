@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded in-memory record of the URLs that recently returned a negative
+ * status code such as 404 (Not Found)
+ * <p>
+ * Least recently used entries are dropped once the maximum number of entries
+ * is reached.
+ */
+class NegativeCache {
+
+  /**
+   * Default maximum number of entries
+   */
+  static final int MAX_ENTRIES = 1024;
+
+  /**
+   * Entry in the negative cache
+   */
+  private static class Entry {
+
+    final int code;
+
+    final long expires;
+
+    Entry(final int code, final long expires) {
+      this.code = code;
+      this.expires = expires;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+      16, 0.75F, true);
+
+  private final int maxEntries;
+
+  /**
+   * Create negative cache
+   *
+   * @param maxEntries
+   */
+  NegativeCache(final int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Get the status code remembered for key
+   *
+   * @param key
+   * @param now
+   *          current time in milliseconds
+   * @return status code or 0 if none is remembered
+   */
+  synchronized int get(final String key, final long now) {
+    final Entry entry = entries.get(key);
+    if (entry == null)
+      return 0;
+    if (entry.expires <= now) {
+      entries.remove(key);
+      return 0;
+    }
+    return entry.code;
+  }
+
+  /**
+   * Remember status code for key
+   *
+   * @param key
+   * @param code
+   * @param expires
+   *          time in milliseconds to remember the status code until
+   * @return true if a status code was already remembered for key
+   */
+  synchronized boolean put(final String key, final int code,
+      final long expires) {
+    final Entry previous = entries.put(key, new Entry(code, expires));
+    if (entries.size() > maxEntries) {
+      final Iterator<String> eldest = entries.keySet().iterator();
+      eldest.next();
+      eldest.remove();
+    }
+    return previous != null && previous.expires > System.currentTimeMillis();
+  }
+
+  /**
+   * Forget the status code remembered for key
+   *
+   * @param key
+   */
+  synchronized void remove(final String key) {
+    entries.remove(key);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background revalidator of cached responses that were served stale
+ * <p>
+ * Revalidations run on a fixed number of daemon threads with a bounded queue.
+ * Only one revalidation per key is pending at a time and revalidations that do
+ * not fit in the queue are rejected so the caller can revalidate itself.
+ */
+class Revalidator {
+
+  /**
+   * Maximum number of revalidations waiting for a thread
+   */
+  static final int MAX_QUEUED = 256;
+
+  private final ConcurrentHashMap<String, Boolean> pending =
+      new ConcurrentHashMap<String, Boolean>();
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Create revalidator
+   *
+   * @param threads
+   *          number of threads revalidating concurrently
+   */
+  Revalidator(final int threads) {
+    executor = new ThreadPoolExecutor(threads, threads, 0,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+        new ThreadFactory() {
+
+          public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable,
+                "EtagCache revalidator");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Revalidate the entry for the given key unless it is already pending
+   *
+   * @param key
+   * @param task
+   * @return true if pending, false if the queue is full
+   */
+  boolean submit(final String key, final Runnable task) {
+    if (pending.putIfAbsent(key, Boolean.TRUE) != null)
+      return true;
+
+    try {
+      executor.execute(new Runnable() {
+
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            pending.remove(key);
+          }
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      pending.remove(key);
+      return false;
+    }
+  }
+
+  /**
+   * Drop queued revalidations and wait for running ones to complete
+   *
+   * @throws InterruptedException
+   */
+  void shutdown() throws InterruptedException {
+    executor.shutdownNow();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Store that keeps each entry in a single file holding a small binary header
+ * followed by the body
+ * <p>
+ * The header holds the length of the header, the length of the body, the
+ * date, max-age and encoding of the response, and its ETag.
+ * Reading the metadata of an entry only takes one small read at the start of
+ * its file. Entries are written to a temporary file that is renamed into place
+ * once committed, so an entry file is always complete. The least recently used
+ * order is kept in memory and is restored from the file modification times
+ * when the store is opened. Files written since the last flush are forced to
+ * disk when the store is flushed.
+ */
+class SingleFileStore implements Store {
+
+  private static final int MAGIC = 0x45544732;
+
+  private static final int OFFSET_BODY_LENGTH = 8;
+
+  private static final int OFFSET_METADATA = 16;
+
+  /**
+   * Length of the header without the ETag and fields
+   */
+  private static final int FIXED_HEADER = 33;
+
+  /**
+   * Number of bytes reserved in the header of a new entry for metadata fields
+   * set while its body is written
+   */
+  private static final int HEADER_RESERVE = 32;
+
+  /**
+   * Number of bytes read when looking up an entry, enough for most headers
+   */
+  private static final int HEADER_READ = 512;
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final Pattern KEY = Pattern.compile("[a-z0-9_-]{1,64}");
+
+  /**
+   * Encode the header of an entry
+   *
+   * @param metadata
+   * @param bodyLength
+   * @param minLength
+   *          length the header is padded to
+   * @return header
+   * @throws IOException
+   */
+  private static byte[] encodeHeader(final Metadata metadata,
+      final long bodyLength, final int minLength) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        FIXED_HEADER + 2 + metadata.eTag.length() + 2);
+    final DataOutputStream output = new DataOutputStream(bytes);
+    output.writeInt(MAGIC);
+    output.writeInt(0);
+    output.writeLong(bodyLength);
+    metadata.write(output);
+    // Padding after the fields is skipped when the header is decoded
+    while (bytes.size() < minLength)
+      output.writeByte(0);
+    output.close();
+
+    final byte[] header = bytes.toByteArray();
+    ByteBuffer.wrap(header).putInt(4, header.length);
+    return header;
+  }
+
+  /**
+   * Decode the header of an entry
+   *
+   * @param header
+   * @param length
+   * @return metadata
+   * @throws IOException
+   */
+  private static Metadata decodeHeader(final byte[] header, final int length)
+      throws IOException {
+    return Metadata.read(new DataInputStream(new ByteArrayInputStream(header,
+        OFFSET_METADATA, length - OFFSET_METADATA)));
+  }
+
+  private static class FileSnapshot implements Snapshot {
+
+    private final FileInputStream body;
+
+    private final Metadata metadata;
+
+    private final long offset;
+
+    private final long length;
+
+    FileSnapshot(final FileInputStream body, final Metadata metadata,
+        final long offset, final long length) {
+      this.body = body;
+      this.metadata = metadata;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public Metadata getMetadata() {
+      return metadata;
+    }
+
+    public InputStream getBody() {
+      return body;
+    }
+
+    public long getBodyLength() {
+      return length;
+    }
+
+    public FileChannel getChannel() {
+      return body.getChannel();
+    }
+
+    public long getBodyOffset() {
+      return offset;
+    }
+
+    public void close() {
+      try {
+        body.close();
+      } catch (IOException ignored) {
+        // Ignored
+      }
+    }
+  }
+
+  private class FileEditor implements Editor {
+
+    private final String key;
+
+    private final File temp;
+
+    private Metadata metadata;
+
+    private int headerLength;
+
+    private OutputStream output;
+
+    private long length;
+
+    private boolean done;
+
+    FileEditor(final String key) {
+      this.key = key;
+      temp = new File(directory, key + TEMP_SUFFIX);
+    }
+
+    public OutputStream newOutputStream(final Metadata metadata)
+        throws IOException {
+      if (output != null)
+        throw new IllegalStateException("Body stream already opened");
+
+      this.metadata = metadata;
+      final byte[] header = encodeHeader(metadata, 0, 0);
+      headerLength = header.length + HEADER_RESERVE;
+      final FileOutputStream file = new FileOutputStream(temp);
+      try {
+        file.write(header);
+        file.write(new byte[HEADER_RESERVE]);
+      } catch (IOException e) {
+        file.close();
+        throw e;
+      }
+      output = new FilterOutputStream(file) {
+
+        @Override
+        public void write(final int value) throws IOException {
+          out.write(value);
+          length++;
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset,
+            final int count) throws IOException {
+          out.write(buffer, offset, count);
+          length += count;
+        }
+      };
+      return output;
+    }
+
+    public void commit() throws IOException {
+      if (done)
+        return;
+      if (output == null) {
+        abort();
+        throw new IllegalStateException("No body written for " + key);
+      }
+
+      try {
+        output.close();
+        final byte[] header = encodeHeader(metadata, length, headerLength);
+        if (header.length != headerLength)
+          throw new IOException("Metadata too large for header of " + key);
+        final RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+          file.write(header);
+        } finally {
+          file.close();
+        }
+        install(key, temp);
+      } catch (IOException e) {
+        abort();
+        throw e;
+      }
+      done = true;
+    }
+
+    public void abort() {
+      if (done)
+        return;
+      done = true;
+
+      if (output != null)
+        try {
+          output.close();
+        } catch (IOException ignored) {
+          // Ignored
+        }
+      temp.delete();
+      release(key);
+    }
+  }
+
+  /**
+   * Open store in the given directory
+   * <p>
+   * The directory must not be used for anything else.
+   *
+   * @param directory
+   * @param maxSize
+   * @return store
+   * @throws IOException
+   */
+  static SingleFileStore open(final File directory, final long maxSize)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Unable to create directory " + directory);
+    return new SingleFileStore(directory, maxSize);
+  }
+
+  private final File directory;
+
+  private final long maxSize;
+
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(
+      16, 0.75F, true);
+
+  private final Set<String> editing = new HashSet<String>();
+
+  /**
+   * Keys of the entries written since the last flush
+   */
+  private final Set<String> dirty = new HashSet<String>();
+
+  private long size;
+
+  private boolean closed;
+
+  private SingleFileStore(final File directory, final long maxSize)
+      throws IOException {
+    this.directory = directory;
+    this.maxSize = maxSize;
+
+    final File[] files = directory.listFiles();
+    if (files == null)
+      throw new IOException("Unable to list " + directory);
+
+    final List<File> stored = new ArrayList<File>(files.length);
+    for (File file : files)
+      if (file.getName().endsWith(TEMP_SUFFIX))
+        file.delete();
+      else if (file.isFile() && KEY.matcher(file.getName()).matches())
+        stored.add(file);
+    Collections.sort(stored, new Comparator<File>() {
+
+      public int compare(final File file1, final File file2) {
+        final long modified1 = file1.lastModified();
+        final long modified2 = file2.lastModified();
+        return modified1 < modified2 ? -1 : modified1 == modified2 ? 0 : 1;
+      }
+    });
+    for (File file : stored) {
+      entries.put(file.getName(), file.length());
+      size += file.length();
+    }
+    trim();
+  }
+
+  private File file(final String key) {
+    return new File(directory, key);
+  }
+
+  /**
+   * Get the length of the file of an entry without counting it as a use
+   *
+   * @param key
+   * @return length or 0 if not stored
+   */
+  long length(final String key) {
+    return file(key).length();
+  }
+
+  private synchronized void checkOpen() {
+    if (closed)
+      throw new IllegalStateException("Store is closed");
+  }
+
+  private synchronized void release(final String key) {
+    editing.remove(key);
+  }
+
+  private synchronized void install(final String key, final File temp)
+      throws IOException {
+    final File target = file(key);
+    if (!temp.renameTo(target) && (!target.delete() || !temp.renameTo(target)))
+      throw new IOException("Unable to rename " + temp + " to " + target);
+
+    final Long previous = entries.put(key, target.length());
+    if (previous != null)
+      size -= previous;
+    size += target.length();
+    editing.remove(key);
+    dirty.add(key);
+    trim();
+  }
+
+  private synchronized void forget(final String key) {
+    final Long previous = entries.remove(key);
+    if (previous != null)
+      size -= previous;
+  }
+
+  private void trim() {
+    final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet()
+        .iterator();
+    while (size > maxSize && iterator.hasNext()) {
+      final Map.Entry<String, Long> entry = iterator.next();
+      size -= entry.getValue();
+      iterator.remove();
+      file(entry.getKey()).delete();
+    }
+  }
+
+  public Snapshot get(final String key) throws IOException {
+    synchronized (this) {
+      checkOpen();
+      if (entries.get(key) == null)
+        return null;
+    }
+
+    final FileInputStream input;
+    try {
+      input = new FileInputStream(file(key));
+    } catch (FileNotFoundException e) {
+      forget(key);
+      return null;
+    }
+    try {
+      final FileChannel channel = input.getChannel();
+      byte[] header = new byte[HEADER_READ];
+      int read = readAt(channel, header, 0);
+      if (read < FIXED_HEADER) {
+        input.close();
+        remove(key);
+        return null;
+      }
+      final ByteBuffer fixed = ByteBuffer.wrap(header);
+      final int headerLength = fixed.getInt(4);
+      final long bodyLength = fixed.getLong(OFFSET_BODY_LENGTH);
+      if (fixed.getInt(0) != MAGIC || headerLength < FIXED_HEADER
+          || headerLength + bodyLength != channel.size()) {
+        input.close();
+        remove(key);
+        return null;
+      }
+      if (headerLength > read) {
+        final byte[] full = new byte[headerLength];
+        System.arraycopy(header, 0, full, 0, read);
+        readAt(channel, full, read);
+        header = full;
+      }
+      final Metadata metadata = decodeHeader(header, headerLength);
+      channel.position(headerLength);
+      return new FileSnapshot(input, metadata, headerLength, bodyLength);
+    } catch (IOException e) {
+      input.close();
+      throw e;
+    }
+  }
+
+  private static int readAt(final FileChannel channel, final byte[] bytes,
+      final int offset) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, bytes.length
+        - offset);
+    while (buffer.hasRemaining())
+      if (channel.read(buffer, buffer.position()) == -1)
+        break;
+    return buffer.position();
+  }
+
+  public Editor edit(final String key) throws IOException {
+    synchronized (this) {
+      checkOpen();
+      if (!editing.add(key))
+        return null;
+    }
+    return new FileEditor(key);
+  }
+
+  public boolean update(final String key, final Metadata metadata)
+      throws IOException {
+    synchronized (this) {
+      checkOpen();
+      if (!entries.containsKey(key) || !editing.add(key))
+        return false;
+    }
+
+    try {
+      final RandomAccessFile file;
+      try {
+        file = new RandomAccessFile(file(key), "rw");
+      } catch (FileNotFoundException e) {
+        return false;
+      }
+      try {
+        if (file.length() < FIXED_HEADER || file.readInt() != MAGIC)
+          return false;
+        final int headerLength = file.readInt();
+        final long bodyLength = file.readLong();
+        // The header is rewritten in place when it fits in its current length
+        final byte[] header = encodeHeader(metadata, bodyLength, headerLength);
+        if (header.length != headerLength)
+          return false;
+        file.seek(0);
+        file.write(header);
+        synchronized (this) {
+          dirty.add(key);
+        }
+        return true;
+      } finally {
+        file.close();
+      }
+    } finally {
+      release(key);
+    }
+  }
+
+  public synchronized boolean remove(final String key) throws IOException {
+    checkOpen();
+    if (editing.contains(key))
+      return false;
+
+    final Long previous = entries.remove(key);
+    if (previous == null)
+      return false;
+    size -= previous;
+    file(key).delete();
+    return true;
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  public synchronized Map<String, Long> getEntries() {
+    final List<Map.Entry<String, Long>> stored = new ArrayList<Map.Entry<String, Long>>(
+        entries.entrySet());
+    Collections.reverse(stored);
+    final Map<String, Long> recent = new LinkedHashMap<String, Long>();
+    for (Map.Entry<String, Long> entry : stored)
+      recent.put(entry.getKey(), entry.getValue());
+    return recent;
+  }
+
+  public void flush() throws IOException {
+    final String[] keys;
+    synchronized (this) {
+      checkOpen();
+      keys = dirty.toArray(new String[dirty.size()]);
+      dirty.clear();
+    }
+
+    for (int i = 0; i < keys.length; i++)
+      try {
+        sync(file(keys[i]));
+      } catch (IOException e) {
+        synchronized (this) {
+          dirty.addAll(Arrays.asList(keys).subList(i, keys.length));
+        }
+        throw e;
+      }
+  }
+
+  private static void sync(final File file) throws IOException {
+    final RandomAccessFile output;
+    try {
+      output = new RandomAccessFile(file, "rw");
+    } catch (FileNotFoundException e) {
+      // Removed since it was written
+      return;
+    }
+    try {
+      output.getFD().sync();
+    } finally {
+      output.close();
+    }
+  }
+
+  public synchronized void close() {
+    closed = true;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * Storage engine that cache entries are written to and read from
+ * <p>
+ * Keys are lowercase hex strings. Implementations must allow any number of
+ * concurrent snapshots and a single editor per key, must only make an entry
+ * visible once its edit has been committed, and must evict entries once the
+ * stored size exceeds their maximum size. Snapshots must keep reading the
+ * entry they were taken of after it is replaced or removed.
+ * <p>
+ * {@link Metadata} is persisted by the store as given, either as the text of
+ * {@link Metadata#format()} or the bytes of {@link Metadata#write(DataOutput)}
+ * and read back with the matching method.
+ */
+public interface Store extends Flushable, Closeable {
+
+  /**
+   * Snapshot of a committed entry
+   */
+  interface Snapshot extends Closeable {
+
+    /**
+     * @return metadata of the entry, never null
+     */
+    Metadata getMetadata();
+
+    /**
+     * @return stream positioned at the start of the stored body
+     */
+    InputStream getBody();
+
+    /**
+     * @return length of the stored body in bytes
+     */
+    long getBodyLength();
+
+    /**
+     * Get the channel of the file the body is stored in
+     * <p>
+     * Reads from the returned channel must use absolute positions so that they
+     * do not affect {@link #getBody()}.
+     *
+     * @return channel or null if the body is not stored in a file
+     */
+    FileChannel getChannel();
+
+    /**
+     * @return position of the body in {@link #getChannel()}
+     */
+    long getBodyOffset();
+
+    /**
+     * Release the resources held by this snapshot
+     */
+    void close();
+  }
+
+  /**
+   * Editor of an entry
+   */
+  interface Editor {
+
+    /**
+     * Open the stream the body is written to
+     * <p>
+     * The metadata is stored when the entry is committed so that fields set
+     * on it while the body is written, such as its checksum, are stored too.
+     *
+     * @param metadata
+     * @return stream
+     * @throws IOException
+     */
+    OutputStream newOutputStream(Metadata metadata) throws IOException;
+
+    /**
+     * Make the entry written by this editor visible
+     *
+     * @throws IOException
+     */
+    void commit() throws IOException;
+
+    /**
+     * Discard the entry written by this editor
+     *
+     * @throws IOException
+     */
+    void abort() throws IOException;
+  }
+
+  /**
+   * Get snapshot of entry
+   *
+   * @param key
+   * @return snapshot or null if not stored
+   * @throws IOException
+   */
+  Snapshot get(String key) throws IOException;
+
+  /**
+   * Start editing entry
+   *
+   * @param key
+   * @return editor or null if the entry is already being edited
+   * @throws IOException
+   */
+  Editor edit(String key) throws IOException;
+
+  /**
+   * Replace the metadata of a stored entry and keep its body
+   *
+   * @param key
+   * @param metadata
+   * @return true if replaced, false if not stored or being edited
+   * @throws IOException
+   */
+  boolean update(String key, Metadata metadata) throws IOException;
+
+  /**
+   * Remove entry
+   *
+   * @param key
+   * @return true if removed, false if not stored
+   * @throws IOException
+   */
+  boolean remove(String key) throws IOException;
+
+  /**
+   * @return total size of the stored entries in bytes
+   */
+  long size();
+
+  /**
+   * Get the stored entries
+   *
+   * @return map of keys to entry sizes, most recently used first
+   * @throws IOException
+   */
+  Map<String, Long> getEntries() throws IOException;
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+/**
+ * Format that an {@link EtagCache} stores its entries on disk in
+ */
+public enum StoreType {
+
+  /**
+   * Entries are stored in a {@link com.jakewharton.disklrucache.DiskLruCache}
+   * with the metadata and the body of each entry in two separate files
+   */
+  DISK_LRU_CACHE,
+
+  /**
+   * Entries are stored in one file each that holds a small binary header
+   * followed by the body
+   */
+  SINGLE_FILE,
+
+  /**
+   * Entries with small bodies are appended to shared log segments and entries
+   * with larger bodies are stored in one file each
+   */
+  LOG_STRUCTURED
+}
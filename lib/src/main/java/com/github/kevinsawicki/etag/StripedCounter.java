@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates from different threads across separate cells
+ * so that concurrent increments do not contend on a single value
+ */
+class StripedCounter {
+
+  /**
+   * Number of longs between cells so that each cell is on its own cache line
+   */
+  private static final int PADDING = 8;
+
+  private static final int STRIPES;
+
+  static {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors())
+      stripes <<= 1;
+    STRIPES = stripes;
+  }
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  /**
+   * Add value to counter
+   *
+   * @param value
+   */
+  void add(final long value) {
+    final int cell = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    cells.addAndGet(cell * PADDING, value);
+  }
+
+  /**
+   * Increment counter
+   */
+  void increment() {
+    add(1);
+  }
+
+  /**
+   * Get current value of counter
+   *
+   * @return sum of all cells
+   */
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++)
+      sum += cells.get(i * PADDING);
+    return sum;
+  }
+
+  /**
+   * Reset counter to zero
+   */
+  void reset() {
+    for (int i = 0; i < STRIPES; i++)
+      cells.set(i * PADDING, 0);
+  }
+}
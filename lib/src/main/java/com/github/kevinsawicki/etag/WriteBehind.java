@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer that drains cache writes handed off by response streams
+ * <p>
+ * All work is run in submission order on a single daemon thread and the number
+ * of bytes waiting to be written is bounded. Streams that cannot reserve room
+ * for a chunk must abort their edit instead of blocking the reader.
+ */
+class WriteBehind {
+
+  private final ExecutorService executor = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+
+        public Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "EtagCache writer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final AtomicLong pending = new AtomicLong(0);
+
+  private final long maxPending;
+
+  /**
+   * Create background writer
+   *
+   * @param maxPending
+   *          maximum number of bytes that can be waiting to be written
+   */
+  WriteBehind(final long maxPending) {
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * Reserve room for the given number of bytes
+   *
+   * @param count
+   * @return true if reserved, false if the writer is too far behind
+   */
+  boolean reserve(final int count) {
+    while (true) {
+      final long current = pending.get();
+      if (current + count > maxPending)
+        return false;
+      if (pending.compareAndSet(current, current + count))
+        return true;
+    }
+  }
+
+  /**
+   * Release room previously reserved once the bytes have been written
+   *
+   * @param count
+   */
+  void release(final int count) {
+    pending.addAndGet(-count);
+  }
+
+  /**
+   * Run task on the writer thread after all previously submitted tasks
+   * <p>
+   * Tasks submitted after this writer has been shut down are run on the
+   * calling thread.
+   *
+   * @param task
+   */
+  void execute(final Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+  }
+
+  /**
+   * Stop accepting tasks and wait for already submitted tasks to complete
+   *
+   * @throws InterruptedException
+   */
+  void shutdown() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests of {@link DiskLruCacheStore}
+ */
+public class DiskLruCacheStoreTest extends StoreTestCase {
+
+  @Override
+  protected Store open(final File directory, final long maxSize)
+      throws IOException {
+    return DiskLruCacheStore.open(directory, maxSize);
+  }
+}
@@ -18,19 +18,45 @@ package com.github.kevinsawicki.etag;
 import static com.github.kevinsawicki.etag.EtagCache.ONE_MB;
 import static com.github.kevinsawicki.http.HttpRequest.CHARSET_UTF8;
 import static com.github.kevinsawicki.http.HttpRequest.ENCODING_GZIP;
+import static com.github.kevinsawicki.http.HttpRequest.HEADER_CACHE_CONTROL;
 import static com.github.kevinsawicki.http.HttpRequest.HEADER_CONTENT_ENCODING;
 import static com.github.kevinsawicki.http.HttpRequest.HEADER_ETAG;
 import static com.github.kevinsawicki.http.HttpRequest.HEADER_IF_NONE_MATCH;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import com.github.kevinsawicki.etag.EtagCache.CacheResponse;
+import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
@@ -321,4 +347,1607 @@ public class EtagCacheTest extends ServerTestCase {
     assertEquals("hello", request.body());
     assertTrue(request.cached());
   }
+
+  /**
+   * Verify hits are served from the memory tier without reading the disk cache
+   *
+   * @throws Exception
+   */
+  @Test
+  public void memoryTier() throws Exception {
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write("hello");
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB, ONE_MB);
+    assertNotNull(cache);
+    assertEquals(0, cache.getMemorySize());
+
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertTrue(request.ok());
+    assertEquals("hello", request.body());
+    assertFalse(request.cached());
+    assertTrue(cache.getMemorySize() > 0);
+
+    for (File entry : file.listFiles())
+      if (!entry.getName().startsWith("journal"))
+        assertTrue(entry.delete());
+
+    request = CacheRequest.get(url, cache);
+    assertTrue(request.ok());
+    assertEquals("hello", request.body());
+    assertTrue(request.cached());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  /**
+   * Verify cache keys are the zero-padded hex SHA-1 of the URL
+   *
+   * @throws Exception
+   */
+  @Test
+  public void keysMatchSha1() throws Exception {
+    StringBuilder longUrl = new StringBuilder("http://localhost/");
+    for (int i = 0; i < 300; i++)
+      longUrl.append('a');
+    String[] urls = new String[] { "http://localhost/", "http://localhost/505",
+        "http://localhost/\u00e9t\u00e9", longUrl.toString() };
+    for (String url : urls) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      String expected = new BigInteger(1, digest.digest(url
+          .getBytes(CHARSET_UTF8))).toString(16);
+      while (expected.length() < 40)
+        expected = "0" + expected;
+      assertEquals(expected, EtagCache.getKey(url));
+    }
+  }
+
+  /**
+   * Verify batch of requests is cached and later served from the cache
+   *
+   * @throws Exception
+   */
+  @Test
+  public void fetchAll() throws Exception {
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        String etag = request.getRequestURI();
+        response.setHeader(HEADER_ETAG, etag);
+        if (etag.equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write(etag);
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+
+    List<URL> urls = Arrays.asList(new URL(url + "/a"), new URL(url + "/b"),
+        new URL(url + "/c"));
+    List<Future<CacheResult>> results = cache.fetchAll(urls, 2);
+    assertEquals(3, results.size());
+    for (int i = 0; i < urls.size(); i++) {
+      CacheResult result = results.get(i).get();
+      assertEquals(urls.get(i), result.url);
+      assertEquals(HTTP_OK, result.code);
+      assertFalse(result.cached);
+      assertEquals(urls.get(i).getPath(),
+          new String(result.body, CHARSET_UTF8));
+    }
+    assertEquals(3, cache.getMisses());
+
+    results = cache.fetchAll(urls, 2);
+    for (int i = 0; i < urls.size(); i++) {
+      CacheResult result = results.get(i).get();
+      assertEquals(HTTP_OK, result.code);
+      assertTrue(result.cached);
+      assertEquals(urls.get(i).getPath(), result.eTag);
+      assertEquals(urls.get(i).getPath(),
+          new String(result.body, CHARSET_UTF8));
+    }
+    assertEquals(3, cache.getHits());
+  }
+
+  /**
+   * Verify responses written by the background writer are committed once the
+   * cache is closed
+   *
+   * @throws Exception
+   */
+  @Test
+  public void writeBehind() throws Exception {
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write("hello");
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+    cache.setWriteBehind(ONE_MB);
+
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertTrue(request.ok());
+    assertEquals("hello", request.body());
+    assertFalse(request.cached());
+    cache.close();
+
+    cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+    request = CacheRequest.get(url, cache);
+    assertTrue(request.ok());
+    assertEquals("hello", request.body());
+    assertTrue(request.cached());
+  }
+
+  /**
+   * Verify gzip'ed and plain responses stored compressed are read back
+   * uncompressed
+   *
+   * @throws Exception
+   */
+  @Test
+  public void storeCompressed() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() < 300)
+      content.append("hello ");
+    final String body = content.toString();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else if (request.getRequestURI().endsWith("gzip")) {
+          try {
+            response.setHeader(HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+            GZIPOutputStream compressed = new GZIPOutputStream(
+                response.getOutputStream());
+            compressed.write(body.getBytes(CHARSET_UTF8));
+            compressed.close();
+          } catch (IOException ignore) {
+            // Ignored
+          }
+          response.setStatus(HTTP_OK);
+        } else {
+          write(body);
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+    cache.setStoreCompressed(true);
+
+    for (String path : new String[] { "/gzip", "/plain" }) {
+      CacheRequest request = CacheRequest.get(url + path, cache);
+      assertTrue(request.ok());
+      assertEquals(body, request.body());
+      assertFalse(request.cached());
+
+      request = CacheRequest.get(url + path, cache);
+      assertTrue(request.ok());
+      assertEquals(body, request.body());
+      assertTrue(request.cached());
+    }
+    assertTrue(cache.getSize() < 2 * body.length());
+  }
+
+  /**
+   * Verify cached bodies are available as buffers and can be transferred to a
+   * channel
+   *
+   * @throws Exception
+   */
+  @Test
+  public void cachedBodyBuffer() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() < EtagCache.MAP_THRESHOLD)
+      content.append("hello");
+    final String large = content.toString();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write(request.getRequestURI().endsWith("large") ? large : "hello");
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+
+    for (String body : new String[] { "hello", large }) {
+      String path = url + (body == large ? "/large" : "/small");
+      CacheRequest request = CacheRequest.get(path, cache);
+      assertEquals(body, request.body());
+      assertNull(request.cachedResponse());
+
+      request = CacheRequest.get(path, cache);
+      CacheResponse response = request.cachedResponse();
+      assertNotNull(response);
+      assertTrue(request.cached());
+      assertNotNull(response.channel());
+      ByteBuffer buffer = response.buffer();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      assertEquals(body, new String(bytes, CHARSET_UTF8));
+
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      assertEquals(body.length(),
+          response.transferTo(Channels.newChannel(output)));
+      assertEquals(body, output.toString(CHARSET_UTF8));
+      assertEquals(body, request.body());
+    }
+  }
+
+  /**
+   * Verify concurrent requests for the same URL only make one request and the
+   * others are served from the cache
+   *
+   * @throws Exception
+   */
+  @Test
+  public void coalescedRequests() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    final String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        requests.incrementAndGet();
+        try {
+          Thread.sleep(250);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        response.setHeader(HEADER_ETAG, "1234");
+        write("hello");
+        response.setStatus(HTTP_OK);
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    final EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+    cache.setCoalescingTimeout(10000);
+
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    List<Future<String>> bodies = new ArrayList<Future<String>>();
+    for (int i = 0; i < 5; i++)
+      bodies.add(executor.submit(new Callable<String>() {
+
+        public String call() throws Exception {
+          return CacheRequest.get(url, cache).body();
+        }
+      }));
+    for (Future<String> body : bodies)
+      assertEquals("hello", body.get());
+    executor.shutdown();
+
+    assertEquals(1, requests.get());
+    assertEquals(1, cache.getMisses());
+    assertEquals(4, cache.getHits());
+  }
+
+  /**
+   * Verify requests stop waiting for a request in flight that only reads its
+   * response code
+   *
+   * @throws Exception
+   */
+  @Test(timeout = 30000)
+  public void coalescedCodeOnly() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        requests.incrementAndGet();
+        response.setHeader(HEADER_ETAG, "1234");
+        write("hello");
+        response.setStatus(HTTP_OK);
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    cache.setCoalescingTimeout(60000);
+
+    CacheRequest leader = CacheRequest.get(url, cache);
+    assertTrue(leader.ok());
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertEquals("hello", request.body());
+    assertFalse(request.cached());
+    assertEquals(2, requests.get());
+    cache.close();
+  }
+
+  /**
+   * Verify requests other than GET requests do not wait for a GET request in
+   * flight for the same URL
+   *
+   * @throws Exception
+   */
+  @Test(timeout = 30000)
+  public void coalescedNonGet() throws Exception {
+    final AtomicInteger posts = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        if ("POST".equals(request.getMethod())) {
+          posts.incrementAndGet();
+          write("posted");
+        } else {
+          response.setHeader(HEADER_ETAG, "1234");
+          write("hello");
+        }
+        response.setStatus(HTTP_OK);
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    cache.setCoalescingTimeout(60000);
+
+    InputStream leader = CacheRequest.get(url, cache).stream();
+    CacheRequest request = new CacheRequest(url, "POST", cache);
+    request.send("data");
+    assertEquals("posted", request.body());
+    assertFalse(request.cached());
+    assertEquals(1, posts.get());
+    leader.close();
+    cache.close();
+  }
+
+  /**
+   * Verify stats are tracked and a listener is notified of cache activity
+   *
+   * @throws Exception
+   */
+  @Test
+  public void listener() throws Exception {
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write("hello");
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+    final AtomicInteger writes = new AtomicInteger();
+    cache.setListener(new CacheStats() {
+
+      @Override
+      public void onWrite(long bytes) {
+        writes.incrementAndGet();
+      }
+    });
+
+    assertEquals("hello", CacheRequest.get(url, cache).body());
+    assertEquals("hello", CacheRequest.get(url, cache).body());
+
+    CacheStats stats = cache.getStats();
+    assertEquals(1, stats.getHitCount());
+    assertEquals(1, stats.getMissCount());
+    assertEquals(2, stats.getLookupCount());
+    assertEquals(1, stats.getRevalidationCount());
+    assertEquals(1, stats.getNotModifiedCount());
+    assertEquals(5, stats.getNetworkBytes());
+    assertEquals(5, stats.getCacheBytes());
+    assertEquals(1, stats.getWriteCount());
+    assertEquals(5, stats.getWrittenBytes());
+    assertEquals(0, stats.getAbortCount());
+    assertEquals(1, writes.get());
+
+    cache.resetStats();
+    assertEquals(0, stats.getHitCount());
+    assertEquals(0, stats.getLookupCount());
+  }
+
+  /**
+   * Verify fresh responses are served without a request and that a 304
+   * response refreshes the stored max-age
+   *
+   * @throws Exception
+   */
+  @Test
+  public void freshResponses() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH))) {
+          response.setHeader(HEADER_CACHE_CONTROL, "max-age=60");
+          response.setStatus(HTTP_NOT_MODIFIED);
+        } else {
+          response.setHeader(HEADER_CACHE_CONTROL, "max-age=0");
+          write("hello");
+          response.setStatus(HTTP_OK);
+        }
+        requests.incrementAndGet();
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+
+    assertEquals("hello", CacheRequest.get(url, cache).body());
+    assertEquals(1, requests.get());
+
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertEquals("hello", request.body());
+    assertTrue(request.cached());
+    assertEquals(2, requests.get());
+
+    request = CacheRequest.get(url, cache);
+    assertEquals(HTTP_OK, request.code());
+    assertEquals("1234", request.eTag());
+    assertEquals("hello", request.body());
+    assertTrue(request.cached());
+    assertEquals(2, requests.get());
+    assertEquals(1, cache.getStats().getRevalidationCount());
+
+    cache.setServeFresh(false);
+    assertEquals("hello", CacheRequest.get(url, cache).body());
+    assertEquals(3, requests.get());
+  }
+
+  /**
+   * Verify requests other than GET requests are always sent even when a
+   * fresh response is cached for the URL
+   *
+   * @throws Exception
+   */
+  @Test
+  public void nonGetRequests() throws Exception {
+    final AtomicInteger posts = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        if ("POST".equals(request.getMethod())) {
+          posts.incrementAndGet();
+          write("posted");
+        } else {
+          response.setHeader(HEADER_ETAG, "1234");
+          response.setHeader(HEADER_CACHE_CONTROL, "max-age=600");
+          write("hello");
+        }
+        response.setStatus(HTTP_OK);
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertEquals("hello", CacheRequest.get(url, cache).body());
+
+    CacheRequest request = new CacheRequest(url, "POST", cache);
+    request.send("data");
+    assertEquals(HTTP_OK, request.code());
+    assertEquals("posted", request.body());
+    assertFalse(request.cached());
+    assertEquals(1, posts.get());
+    cache.close();
+  }
+
+  /**
+   * Verify stale responses are served immediately and revalidated in the
+   * background
+   *
+   * @throws Exception
+   */
+  @Test
+  public void staleWhileRevalidate() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    final Semaphore revalidations = new Semaphore(0);
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        int count = requests.incrementAndGet();
+        String eTag = count < 3 ? "1234" : "5678";
+        // Revalidations are held until the stale response has been served
+        if (count == 2 || count == 3)
+          try {
+            revalidations.acquire();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        response.setHeader(HEADER_ETAG, eTag);
+        if (eTag.equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write(eTag);
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+    cache.setStaleWhileRevalidate(1);
+
+    assertEquals("1234", CacheRequest.get(url, cache).body());
+    assertEquals(1, requests.get());
+
+    for (int i = 2; i <= 3; i++) {
+      CacheRequest request = CacheRequest.get(url, cache);
+      assertEquals("1234", request.body());
+      assertTrue(request.cached());
+      assertEquals(i - 2, cache.getStats().getRevalidationCount());
+      revalidations.release();
+      while (cache.getStats().getRevalidationCount() < i - 1)
+        Thread.sleep(10);
+      assertEquals(i, requests.get());
+    }
+
+    while (cache.getStats().getWriteCount() < 2)
+      Thread.sleep(10);
+    assertEquals("5678", CacheRequest.get(url, cache).body());
+    assertEquals(1, cache.getMisses());
+    cache.close();
+  }
+
+  /**
+   * Verify cached responses are served and kept when requests fail or time out
+   *
+   * @throws Exception
+   */
+  @Test
+  public void staleIfError() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    final String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        switch (requests.incrementAndGet()) {
+        case 1:
+          response.setHeader(HEADER_ETAG, "1234");
+          write("hello");
+          response.setStatus(HTTP_OK);
+          break;
+        case 2:
+          try {
+            Thread.sleep(500);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          response.setStatus(HTTP_OK);
+          break;
+        default:
+          response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+    cache.setStaleIfError(60000);
+
+    assertEquals("hello", CacheRequest.get(url, cache).body());
+
+    CacheRequest request = CacheRequest.get(url, cache);
+    request.readTimeout(100);
+    assertEquals("hello", request.body());
+    assertTrue(request.cached());
+
+    request = CacheRequest.get(url, cache);
+    assertEquals(HTTP_OK, request.code());
+    assertEquals("1234", request.eTag());
+    assertEquals("hello", request.body());
+    assertTrue(request.cached());
+
+    assertNull(cache.put(new URL(url).openConnection()));
+    CacheResponse response = cache.get(new URL(url).openConnection());
+    assertNotNull(response);
+    response.close();
+
+    request = new CacheRequest(url, "POST", cache);
+    request.send("data");
+    assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, request.code());
+    assertFalse(request.cached());
+
+    cache.setStaleIfError(0);
+    request = CacheRequest.get(url, cache);
+    assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, request.code());
+    assertFalse(request.cached());
+  }
+
+  /**
+   * Verify entries are spread across the directories of a sharded cache and
+   * are found again after it is reopened
+   *
+   * @throws Exception
+   */
+  @Test
+  public void shardedCache() throws Exception {
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        String eTag = request.getRequestURI();
+        response.setHeader(HEADER_ETAG, eTag);
+        if (eTag.equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write(eTag);
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    File[] directories = new File[4];
+    for (int i = 0; i < directories.length; i++)
+      directories[i] = new File(file, Integer.toString(i));
+
+    EtagCache cache = EtagCache.create(directories, ONE_MB, 0);
+    assertNotNull(cache);
+    for (int i = 0; i < 20; i++)
+      assertEquals("/" + i, CacheRequest.get(url + "/" + i, cache).body());
+    long size = cache.getSize();
+    assertTrue(size > 0);
+    cache.close();
+
+    int used = 0;
+    for (File directory : directories)
+      if (directory.list().length > 1)
+        used++;
+    assertTrue(used > 1);
+
+    cache = EtagCache.create(directories, ONE_MB, 0);
+    assertNotNull(cache);
+    assertEquals(size, cache.getSize());
+    for (int i = 0; i < 20; i++) {
+      CacheRequest request = CacheRequest.get(url + "/" + i, cache);
+      assertEquals("/" + i, request.body());
+      assertTrue(request.cached());
+    }
+    cache.close();
+  }
+
+  /**
+   * Verify entries on disk are loaded into memory by a warm-up
+   *
+   * @throws Exception
+   */
+  @Test
+  public void warmUp() throws Exception {
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        String eTag = request.getRequestURI();
+        response.setHeader(HEADER_ETAG, eTag);
+        if (eTag.equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write(eTag);
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertNotNull(cache);
+    for (int i = 0; i < 5; i++)
+      assertEquals("/" + i, CacheRequest.get(url + "/" + i, cache).body());
+    assertEquals(0, cache.warmUp(ONE_MB, 10000).get().intValue());
+    cache.close();
+
+    cache = EtagCache.create(file, ONE_MB, ONE_MB);
+    assertNotNull(cache);
+    assertEquals(0, cache.getMemorySize());
+    assertEquals(5, cache.warmUp(ONE_MB, 10000).get().intValue());
+    assertTrue(cache.getMemorySize() > 0);
+    cache.close();
+
+    cache = EtagCache.create(file, ONE_MB, ONE_MB);
+    assertNotNull(cache);
+    assertEquals(0, cache.warmUp(ONE_MB, 0).get().intValue());
+    assertEquals(2, cache.warmUp(50, 10000).get().intValue());
+    cache.close();
+  }
+
+  /**
+   * Verify entries are stored in one file each by the single file format
+   *
+   * @throws Exception
+   */
+  @Test
+  public void singleFileStore() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() < EtagCache.MAP_THRESHOLD)
+      content.append("hello");
+    final String large = content.toString();
+    final AtomicInteger requests = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        requests.incrementAndGet();
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH))) {
+          response.setHeader(HEADER_CACHE_CONTROL, "max-age=60");
+          response.setStatus(HTTP_NOT_MODIFIED);
+        } else {
+          write(request.getRequestURI().endsWith("large") ? large : "hello");
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    File[] directories = new File[] { file };
+
+    EtagCache cache = EtagCache.create(directories, ONE_MB, 0,
+        StoreType.SINGLE_FILE);
+    assertNotNull(cache);
+    assertEquals("hello", CacheRequest.get(url + "/small", cache).body());
+    assertEquals(large, CacheRequest.get(url + "/large", cache).body());
+    assertEquals(2, file.list().length);
+    assertTrue(cache.getSize() > large.length());
+    cache.close();
+
+    cache = EtagCache.create(directories, ONE_MB, 0, StoreType.SINGLE_FILE);
+    assertNotNull(cache);
+    for (String body : new String[] { "hello", large }) {
+      String path = url + (body == large ? "/large" : "/small");
+      CacheRequest request = CacheRequest.get(path, cache);
+      CacheResponse response = request.cachedResponse();
+      assertNotNull(response);
+      assertNull(response.channel());
+      ByteBuffer buffer = response.buffer();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      assertEquals(body, new String(bytes, CHARSET_UTF8));
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      assertEquals(body.length(),
+          response.transferTo(Channels.newChannel(output)));
+      assertEquals(body, output.toString(CHARSET_UTF8));
+      assertEquals(body, request.body());
+    }
+    assertEquals(4, requests.get());
+
+    CacheRequest request = CacheRequest.get(url + "/small", cache);
+    assertEquals("hello", request.body());
+    assertTrue(request.cached());
+    assertEquals(4, requests.get());
+    cache.close();
+  }
+
+  /**
+   * Verify entries are served from a log-structured store after it is
+   * reopened and after a torn record is appended to its log
+   *
+   * @throws Exception
+   */
+  @Test
+  public void logStructuredStore() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() <= LogStore.SMALL_BODY)
+      content.append("hello");
+    final String large = content.toString();
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger version = new AtomicInteger(1);
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        requests.incrementAndGet();
+        String eTag = "1234";
+        if (request.getRequestURI().endsWith("changing"))
+          eTag += version.get();
+        response.setHeader(HEADER_ETAG, eTag);
+        if (eTag.equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write(request.getRequestURI().endsWith("large") ? large : eTag);
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    File[] directories = new File[] { file };
+
+    EtagCache cache = EtagCache.create(directories, ONE_MB, 0,
+        StoreType.LOG_STRUCTURED);
+    assertNotNull(cache);
+    assertEquals("1234", CacheRequest.get(url + "/small", cache).body());
+    assertEquals(large, CacheRequest.get(url + "/large", cache).body());
+    assertEquals("12341", CacheRequest.get(url + "/changing", cache).body());
+    version.set(2);
+    assertEquals("12342", CacheRequest.get(url + "/changing", cache).body());
+    assertEquals(1, new File(file, "large").list().length);
+    assertTrue(cache.getSize() > large.length());
+    cache.close();
+
+    RandomAccessFile log = new RandomAccessFile(new File(file, "1.log"), "rw");
+    long length = log.length();
+    log.seek(length);
+    log.write(new byte[] { 'E', 'T', 'L', '1', 0, 0 });
+    log.close();
+
+    cache = EtagCache.create(directories, ONE_MB, 0, StoreType.LOG_STRUCTURED);
+    assertNotNull(cache);
+    assertEquals(length, new File(file, "1.log").length());
+    for (String path : new String[] { "/small", "/large", "/changing" }) {
+      CacheRequest request = CacheRequest.get(url + path, cache);
+      CacheResponse response = request.cachedResponse();
+      assertNotNull(response);
+      ByteBuffer buffer = response.buffer();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      assertEquals(new String(bytes, CHARSET_UTF8), request.body());
+      assertTrue(request.cached());
+    }
+    assertEquals(7, requests.get());
+    cache.close();
+  }
+
+  /**
+   * Verify cache created from stores opened by the caller
+   *
+   * @throws Exception
+   */
+  @Test
+  public void customStores() throws Exception {
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write("hello");
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    Store store = DiskLruCacheStore.open(file, ONE_MB);
+    EtagCache cache = EtagCache.create(new Store[] { store }, 0);
+    assertNotNull(cache);
+    assertEquals("hello", CacheRequest.get(url, cache).body());
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertEquals("hello", request.body());
+    assertTrue(request.cached());
+    assertEquals(store.size(), cache.getSize());
+    cache.close();
+  }
+
+  /**
+   * Verify bytes skipped while reading a response are still stored
+   *
+   * @throws Exception
+   */
+  @Test
+  public void skipStoresBody() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() < 100000)
+      content.append("hello");
+    final String body = content.toString();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write(body);
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    InputStream stream = CacheRequest.get(url, cache).stream();
+    assertEquals('h', stream.read());
+    assertEquals(50000, stream.skip(50000));
+    byte[] buffer = new byte[8192];
+    long total = 50001;
+    int read;
+    while ((read = stream.read(buffer)) != -1)
+      total += read;
+    stream.close();
+    assertEquals(body.length(), total);
+
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertEquals(body, request.body());
+    assertTrue(request.cached());
+    cache.close();
+  }
+
+  /**
+   * Verify the cached response of the most requested URL is revalidated in
+   * the background before it becomes stale
+   *
+   * @throws Exception
+   */
+  @Test
+  public void hotRefresh() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger hotRevalidations = new AtomicInteger();
+    final AtomicInteger coldRevalidations = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        requests.incrementAndGet();
+        response.setHeader(HEADER_ETAG, "1234");
+        response.setHeader(HEADER_CACHE_CONTROL, "max-age=1");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH))) {
+          if (request.getRequestURI().endsWith("hot"))
+            hotRevalidations.incrementAndGet();
+          else
+            coldRevalidations.incrementAndGet();
+          response.setStatus(HTTP_NOT_MODIFIED);
+        } else {
+          write("hello");
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB).setHotRefresh(1, 200);
+    for (int i = 0; i < 3; i++)
+      assertEquals("hello", CacheRequest.get(url + "/hot", cache).body());
+    assertEquals("hello", CacheRequest.get(url + "/cold", cache).body());
+    assertEquals(2, requests.get());
+
+    for (int i = 0; i < 30; i++) {
+      CacheRequest request = CacheRequest.get(url + "/hot", cache);
+      assertEquals("hello", request.body());
+      assertTrue(request.cached());
+      Thread.sleep(50);
+    }
+    cache.close();
+    assertTrue(hotRevalidations.get() > 0);
+    assertEquals(0, coldRevalidations.get());
+    assertEquals(2 + hotRevalidations.get(), requests.get());
+  }
+
+  /**
+   * Verify each variant of a response that varies by request headers is
+   * cached separately
+   *
+   * @throws Exception
+   */
+  @Test
+  public void varyingResponses() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        requests.incrementAndGet();
+        String variant;
+        if (request.getRequestURI().endsWith("accept")) {
+          response.setHeader("Vary", "Accept");
+          variant = request.getHeader("Accept");
+        } else if (request.getRequestURI().endsWith("auth")) {
+          response.setHeader("Vary", "Accept-Encoding, Authorization");
+          variant = request.getHeader("Authorization");
+          if (variant == null)
+            variant = "anonymous";
+        } else {
+          response.setHeader("Vary", "*");
+          variant = "any";
+        }
+        response.setHeader(HEADER_ETAG, variant);
+        if (variant.equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write(variant);
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    for (int i = 0; i < 2; i++)
+      for (String accept : new String[] { "text/plain", "text/html" }) {
+        CacheRequest request = CacheRequest.get(url + "/accept", cache);
+        request.accept(accept);
+        assertEquals(accept, request.body());
+        assertEquals(i == 1, request.cached());
+      }
+    assertEquals(4, requests.get());
+
+    List<String> bodies = new ArrayList<String>();
+    for (int i = 0; i < 2; i++)
+      for (String user : new String[] { "user1", "user2" }) {
+        CacheRequest request = CacheRequest.get(url + "/auth", cache);
+        request.basic(user, "secret");
+        bodies.add(request.body());
+        assertEquals(i == 1, request.cached());
+      }
+    assertFalse(bodies.get(0).equals(bodies.get(1)));
+    assertEquals(bodies.subList(0, 2), bodies.subList(2, 4));
+    CacheRequest anonymous = CacheRequest.get(url + "/auth", cache);
+    assertEquals("anonymous", anonymous.body());
+    assertFalse(anonymous.cached());
+    assertEquals(9, requests.get());
+
+    for (int i = 0; i < 2; i++) {
+      CacheRequest request = CacheRequest.get(url + "/any", cache);
+      assertEquals("any", request.body());
+      assertFalse(request.cached());
+    }
+    assertEquals(11, requests.get());
+    cache.close();
+  }
+
+  /**
+   * Verify responses that vary by a request header the connection sets by
+   * default are found again
+   *
+   * @throws Exception
+   */
+  @Test
+  public void varyByDefaultHeader() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        requests.incrementAndGet();
+        response.setHeader("Vary", "Accept, User-Agent");
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write("hello");
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    for (int i = 0; i < 3; i++) {
+      CacheRequest request = CacheRequest.get(url, cache);
+      assertEquals("hello", request.body());
+      assertEquals(i > 0, request.cached());
+    }
+    assertEquals(3, requests.get());
+    cache.close();
+  }
+
+  /**
+   * Verify fresh responses complete on the calling thread and other responses
+   * complete on the executor
+   *
+   * @throws Exception
+   */
+  @Test
+  public void fetchAsync() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        requests.incrementAndGet();
+        response.setHeader(HEADER_ETAG, "1234");
+        response.setHeader(HEADER_CACHE_CONTROL, "max-age=60");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write("hello");
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final List<Thread> threads = new ArrayList<Thread>();
+    final List<CacheResult> results = new ArrayList<CacheResult>();
+    CacheCallback callback = new CacheCallback() {
+
+      public void onResult(CacheResult result) {
+        synchronized (results) {
+          threads.add(Thread.currentThread());
+          results.add(result);
+        }
+      }
+
+      public void onError(URL url, Exception error) {
+      }
+    };
+
+    Future<CacheResult> miss = cache.fetch(new URL(url), executor, callback);
+    CacheResult result = miss.get();
+    assertEquals(HTTP_OK, result.code);
+    assertFalse(result.cached);
+    assertEquals("hello", new String(result.body, CHARSET_UTF8));
+
+    Future<CacheResult> hit = cache.fetch(new URL(url), executor, callback);
+    assertTrue(hit.isDone());
+    assertTrue(hit.get().cached);
+    assertEquals("hello", new String(hit.get().body, CHARSET_UTF8));
+    assertEquals(1, requests.get());
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(2, results.size());
+    assertTrue(threads.contains(Thread.currentThread()));
+    assertFalse(threads.get(0) == threads.get(1));
+    cache.close();
+  }
+
+  /**
+   * Verify 404 responses remove the cached response and are remembered
+   *
+   * @throws Exception
+   */
+  @Test
+  public void negativeResponses() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        if (requests.incrementAndGet() == 1) {
+          response.setHeader(HEADER_ETAG, "1234");
+          write("hello");
+          response.setStatus(HTTP_OK);
+        } else
+          response.setStatus(HTTP_NOT_FOUND);
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    cache.setNegativeTtl(60000);
+    assertEquals("hello", CacheRequest.get(url, cache).body());
+    cache.flush();
+    assertNotNull(cache.get(new URL(url).openConnection()));
+
+    assertEquals(HTTP_NOT_FOUND, CacheRequest.get(url, cache).code());
+    assertEquals(2, requests.get());
+    assertNull(cache.get(new URL(url).openConnection()));
+
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertEquals(HTTP_NOT_FOUND, request.code());
+    assertEquals("", request.body());
+    assertFalse(request.cached());
+    assertEquals(2, requests.get());
+    assertEquals(0, cache.getStats().getHitCount());
+    cache.close();
+  }
+
+  /**
+   * Store that counts how many times it is flushed
+   */
+  private static class FlushCountingStore implements Store {
+
+    final AtomicInteger flushes = new AtomicInteger();
+
+    final Store store;
+
+    FlushCountingStore(Store store) {
+      this.store = store;
+    }
+
+    public Snapshot get(String key) throws IOException {
+      return store.get(key);
+    }
+
+    public Editor edit(String key) throws IOException {
+      return store.edit(key);
+    }
+
+    public boolean update(String key, Metadata metadata) throws IOException {
+      return store.update(key, metadata);
+    }
+
+    public boolean remove(String key) throws IOException {
+      return store.remove(key);
+    }
+
+    public long size() {
+      return store.size();
+    }
+
+    public Map<String, Long> getEntries() throws IOException {
+      return store.getEntries();
+    }
+
+    public void flush() throws IOException {
+      flushes.incrementAndGet();
+      store.flush();
+    }
+
+    public void close() throws IOException {
+      store.close();
+    }
+  }
+
+  /**
+   * Verify commits are flushed in groups by a background thread
+   *
+   * @throws Exception
+   */
+  @Test
+  public void groupFlush() throws Exception {
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        write("hello");
+        response.setStatus(HTTP_OK);
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    FlushCountingStore store = new FlushCountingStore(DiskLruCacheStore.open(
+        file, ONE_MB));
+    EtagCache cache = EtagCache.create(new Store[] { store }, 0);
+    cache.setGroupFlush(3, 60000);
+    for (int i = 0; i < 2; i++)
+      assertEquals("hello", CacheRequest.get(url + "?" + i, cache)
+          .setFlushToDisk(true).body());
+    assertEquals(0, store.flushes.get());
+    assertEquals("hello", CacheRequest.get(url + "?2", cache)
+        .setFlushToDisk(true).body());
+    long timeout = System.currentTimeMillis() + 10000;
+    while (store.flushes.get() == 0 && System.currentTimeMillis() < timeout)
+      Thread.sleep(10);
+    assertEquals(1, store.flushes.get());
+
+    cache.setGroupFlush(100, 50);
+    assertEquals("hello", CacheRequest.get(url + "?3", cache).body());
+    timeout = System.currentTimeMillis() + 10000;
+    while (store.flushes.get() == 1 && System.currentTimeMillis() < timeout)
+      Thread.sleep(10);
+    assertEquals(2, store.flushes.get());
+    cache.close();
+  }
+
+  /**
+   * Verify a body not read completely is resumed with a range request
+   *
+   * @throws Exception
+   */
+  @Test
+  public void resumePartialBody() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() < 100000)
+      content.append("hello");
+    final String body = content.toString();
+    final List<String> ranges = new ArrayList<String>();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        String range = request.getHeader("Range");
+        ranges.add(range);
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else if (range != null
+            && "1234".equals(request.getHeader("If-Range"))) {
+          int start = Integer.parseInt(range.substring(6, range.length() - 1));
+          response.setStatus(HTTP_PARTIAL);
+          response.setHeader("Content-Range", "bytes " + start + "-"
+              + (body.length() - 1) + "/" + body.length());
+          response.setContentLength(body.length() - start);
+          write(body.substring(start));
+        } else {
+          response.setStatus(HTTP_OK);
+          response.setContentLength(body.length());
+          write(body);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    InputStream stream = CacheRequest.get(url, cache).stream();
+    byte[] buffer = new byte[10000];
+    int read = 0;
+    while (read < buffer.length)
+      read += stream.read(buffer, read, buffer.length - read);
+    stream.close();
+    cache.flush();
+    assertNull(cache.get(new URL(url).openConnection()));
+
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertEquals(body, request.body());
+    assertEquals(HTTP_OK, request.code());
+    assertEquals("bytes=10000-", ranges.get(1));
+
+    request = CacheRequest.get(url, cache);
+    assertEquals(body, request.body());
+    assertTrue(request.cached());
+    assertNull(ranges.get(2));
+    cache.close();
+  }
+
+  /**
+   * Verify a truncated body with a weak ETag is discarded since the rest of it
+   * cannot be requested later
+   *
+   * @throws Exception
+   */
+  @Test
+  public void truncatedWeakETag() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() < 100000)
+      content.append("hello");
+    final String body = content.toString();
+    final List<String> ranges = new ArrayList<String>();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "W/\"1234\"");
+        ranges.add(request.getHeader("Range"));
+        if ("W/\"1234\"".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          response.setStatus(HTTP_OK);
+          response.setContentLength(body.length());
+          write(body);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    InputStream stream = CacheRequest.get(url, cache).stream();
+    byte[] buffer = new byte[10000];
+    int read = 0;
+    while (read < buffer.length)
+      read += stream.read(buffer, read, buffer.length - read);
+    stream.close();
+    cache.flush();
+    assertNull(cache.get(new URL(url).openConnection()));
+    assertEquals(0, cache.getSize());
+
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertEquals(body, request.body());
+    assertFalse(request.cached());
+    assertNull(ranges.get(1));
+    cache.close();
+  }
+
+  /**
+   * Verify a cached body that does not match its checksum is evicted
+   *
+   * @throws Exception
+   */
+  @Test
+  public void corruptedBody() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() < 10000)
+      content.append("hello world");
+    final String body = content.toString();
+    final AtomicInteger requests = new AtomicInteger();
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        requests.incrementAndGet();
+        response.setHeader(HEADER_ETAG, "1234");
+        if ("1234".equals(request.getHeader(HEADER_IF_NONE_MATCH)))
+          response.setStatus(HTTP_NOT_MODIFIED);
+        else {
+          write(body);
+          response.setStatus(HTTP_OK);
+        }
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    assertEquals(body, CacheRequest.get(url, cache).body());
+    cache.flush();
+    assertNotNull(cache.get(new URL(url).openConnection()));
+
+    String key = EtagCache.getKey(new URL(url).toExternalForm());
+    RandomAccessFile stored = new RandomAccessFile(new File(file, key + ".1"),
+        "rw");
+    stored.write('j');
+    stored.close();
+
+    try {
+      CacheRequest.get(url, cache).body();
+      fail("Exception not thrown");
+    } catch (HttpRequestException e) {
+      assertNotNull(e.getCause());
+    }
+    assertNull(cache.get(new URL(url).openConnection()));
+
+    CacheRequest request = CacheRequest.get(url, cache);
+    assertEquals(body, request.body());
+    assertFalse(request.cached());
+    assertEquals(3, requests.get());
+    cache.close();
+  }
+
+  /**
+   * Verify corrupted bodies are not returned as buffers or transferred
+   *
+   * @throws Exception
+   */
+  @Test
+  public void corruptedBuffer() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() < 100000)
+      content.append("hello world");
+    final String large = content.toString();
+    final String small = large.substring(0, 10000);
+    String url = setUp(new RequestHandler() {
+
+      @Override
+      public void handle(Request request, HttpServletResponse response) {
+        response.setHeader(HEADER_ETAG, "1234");
+        write(request.getRequestURI().endsWith("large") ? large : small);
+        response.setStatus(HTTP_OK);
+      }
+    });
+
+    File file = File.createTempFile("cache", ".dir");
+    assertTrue(file.delete());
+    assertTrue(file.mkdirs());
+    EtagCache cache = EtagCache.create(file, ONE_MB);
+    String[] paths = { "/small", "/large", "/small" };
+    for (int i = 0; i < paths.length; i++) {
+      String resource = url + paths[i];
+      assertTrue(CacheRequest.get(resource, cache).body().length() > 0);
+      cache.flush();
+      String key = EtagCache.getKey(new URL(resource).toExternalForm());
+      RandomAccessFile stored = new RandomAccessFile(new File(file, key
+          + ".1"), "rw");
+      stored.write('j');
+      stored.close();
+
+      CacheResponse response = cache.get(new URL(resource).openConnection());
+      assertNotNull(response);
+      try {
+        // Buffers are read into the heap or mapped, then the body transferred
+        if (i < 2)
+          response.buffer();
+        else
+          response.transferTo(Channels.newChannel(new ByteArrayOutputStream()));
+        fail("Exception not thrown");
+      } catch (IOException e) {
+        assertNotNull(e.getMessage());
+      } finally {
+        response.close();
+      }
+      assertNull(cache.get(new URL(resource).openConnection()));
+    }
+    cache.close();
+  }
 }
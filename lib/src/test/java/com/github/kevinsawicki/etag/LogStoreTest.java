@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link LogStore}
+ */
+public class LogStoreTest extends StoreTestCase {
+
+  @Override
+  protected Store open(final File directory, final long maxSize)
+      throws IOException {
+    return LogStore.open(directory, maxSize);
+  }
+
+  /**
+   * Verify segments filled since the last flush are flushed along with the
+   * active segment
+   *
+   * @throws IOException
+   */
+  @Test
+  public void flushAcrossSegments() throws IOException {
+    File directory = File.createTempFile("store", ".dir");
+    assertTrue(directory.delete());
+    LogStore store = LogStore.open(directory, 4 * LogStore.SEGMENT_SIZE);
+    final byte[] body = new byte[LogStore.SMALL_BODY];
+    final int count = (int) (LogStore.SEGMENT_SIZE / body.length) + 16;
+    for (int i = 0; i < count; i++) {
+      final Store.Editor editor = store.edit(key(i));
+      final OutputStream output = editor.newOutputStream(new Metadata("1"));
+      output.write(body);
+      output.close();
+      editor.commit();
+    }
+    assertEquals(1, store.getUnflushedCount());
+    store.flush();
+    assertEquals(0, store.getUnflushedCount());
+    store.close();
+
+    store = LogStore.open(directory, 4 * LogStore.SEGMENT_SIZE);
+    try {
+      for (int i = 0; i < count; i++) {
+        final Store.Snapshot snapshot = store.get(key(i));
+        assertNotNull(snapshot);
+        assertEquals(body.length, snapshot.getBodyLength());
+        snapshot.close();
+      }
+    } finally {
+      store.close();
+    }
+  }
+
+  private static String key(final int index) {
+    final String hex = Integer.toHexString(index);
+    return "0000000000000000000000000000000000000000".substring(hex.length())
+        + hex;
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2012 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.kevinsawicki.etag;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Base test case that every {@link Store} implementation must pass
+ * <p>
+ * This class is published in the <code>tests</code> jar of this artifact so
+ * that stores outside this library can be tested by extending it and
+ * implementing {@link #open(File, long)}.
+ */
+public abstract class StoreTestCase {
+
+  /**
+   * Maximum size of the store under test
+   */
+  protected static final long MAX_SIZE = 64 * 1024;
+
+  private static final String KEY1 = "0123456789abcdef0123456789abcdef01234567";
+
+  private static final String KEY2 = "76543210fedcba9876543210fedcba9876543210";
+
+  private static final String KEY3 = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+
+  private File directory;
+
+  private Store store;
+
+  /**
+   * Open store in the given directory
+   *
+   * @param directory
+   * @param maxSize
+   * @return store
+   * @throws IOException
+   */
+  protected abstract Store open(File directory, long maxSize)
+      throws IOException;
+
+  /**
+   * Open store in a new directory
+   *
+   * @throws IOException
+   */
+  @Before
+  public void openStore() throws IOException {
+    directory = File.createTempFile("store", ".dir");
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdirs());
+    store = open(directory, MAX_SIZE);
+  }
+
+  /**
+   * Close store
+   *
+   * @throws IOException
+   */
+  @After
+  public void closeStore() throws IOException {
+    if (store != null)
+      store.close();
+  }
+
+  private void reopen() throws IOException {
+    store.flush();
+    store.close();
+    store = open(directory, MAX_SIZE);
+  }
+
+  private static Metadata metadata(final String eTag) {
+    return new Metadata(eTag).setEncoding(Metadata.ENCODING_GZIP)
+        .setDate(1000).setMaxAge(60);
+  }
+
+  private boolean put(final String key, final String eTag, final byte[] body)
+      throws IOException {
+    final Store.Editor editor = store.edit(key);
+    if (editor == null)
+      return false;
+    final OutputStream output = editor.newOutputStream(metadata(eTag));
+    output.write(body);
+    output.close();
+    editor.commit();
+    return true;
+  }
+
+  private static byte[] read(final Store.Snapshot snapshot)
+      throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final InputStream input = snapshot.getBody();
+    final byte[] buffer = new byte[8192];
+    int read;
+    while ((read = input.read(buffer)) != -1)
+      output.write(buffer, 0, read);
+    return output.toByteArray();
+  }
+
+  private void assertStored(final String key, final String eTag,
+      final byte[] body) throws IOException {
+    final Store.Snapshot snapshot = store.get(key);
+    assertNotNull(snapshot);
+    try {
+      final Metadata metadata = snapshot.getMetadata();
+      assertEquals(eTag, metadata.getETag());
+      assertEquals(Metadata.ENCODING_GZIP, metadata.getEncoding());
+      assertEquals(1000, metadata.getDate());
+      assertEquals(60, metadata.getMaxAge());
+      assertEquals(body.length, snapshot.getBodyLength());
+
+      final FileChannel channel = snapshot.getChannel();
+      if (channel != null) {
+        final ByteBuffer buffer = ByteBuffer.allocate(body.length);
+        while (buffer.hasRemaining())
+          if (channel.read(buffer, snapshot.getBodyOffset()
+              + buffer.position()) == -1)
+            break;
+        assertArrayEquals(body, buffer.array());
+      }
+      assertArrayEquals(body, read(snapshot));
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  /**
+   * Verify entries that were never stored are not found
+   *
+   * @throws IOException
+   */
+  @Test
+  public void getMissing() throws IOException {
+    assertNull(store.get(KEY1));
+    assertFalse(store.remove(KEY1));
+    assertFalse(store.update(KEY1, metadata("1")));
+    assertEquals(0, store.size());
+    assertTrue(store.getEntries().isEmpty());
+  }
+
+  /**
+   * Verify committed entries are read back
+   *
+   * @throws IOException
+   */
+  @Test
+  public void commit() throws IOException {
+    final byte[] body = "hello".getBytes("UTF-8");
+    assertTrue(put(KEY1, "1", body));
+    assertStored(KEY1, "1", body);
+    assertTrue(store.size() >= body.length);
+
+    final byte[] large = new byte[3 * 4096];
+    Arrays.fill(large, (byte) 'a');
+    assertTrue(put(KEY2, "2", large));
+    assertStored(KEY2, "2", large);
+
+    final byte[] empty = new byte[0];
+    assertTrue(put(KEY3, "3", empty));
+    assertStored(KEY3, "3", empty);
+  }
+
+  /**
+   * Verify entries are only visible once committed and an entry can only
+   * have one editor
+   *
+   * @throws IOException
+   */
+  @Test
+  public void edit() throws IOException {
+    final Store.Editor editor = store.edit(KEY1);
+    assertNotNull(editor);
+    assertNull(store.edit(KEY1));
+    final OutputStream output = editor.newOutputStream(metadata("1"));
+    output.write(1);
+    output.close();
+    assertNull(store.get(KEY1));
+    editor.commit();
+    assertStored(KEY1, "1", new byte[] { 1 });
+    assertNotNull(store.edit(KEY1));
+  }
+
+  /**
+   * Verify aborted edits leave the stored entry in place
+   *
+   * @throws IOException
+   */
+  @Test
+  public void abort() throws IOException {
+    final Store.Editor editor = store.edit(KEY1);
+    editor.newOutputStream(metadata("1")).write(1);
+    editor.abort();
+    assertNull(store.get(KEY1));
+
+    assertTrue(put(KEY1, "1", new byte[] { 1 }));
+    final Store.Editor replace = store.edit(KEY1);
+    final OutputStream output = replace.newOutputStream(metadata("2"));
+    output.write(new byte[] { 2, 2 });
+    output.close();
+    replace.abort();
+    assertStored(KEY1, "1", new byte[] { 1 });
+    assertNotNull(store.edit(KEY1));
+  }
+
+  /**
+   * Verify snapshots keep reading the entry they were taken of after it is
+   * replaced and removed
+   *
+   * @throws IOException
+   */
+  @Test
+  public void snapshotIsolation() throws IOException {
+    assertTrue(put(KEY1, "1", "first".getBytes("UTF-8")));
+    final Store.Snapshot first = store.get(KEY1);
+    assertTrue(put(KEY1, "2", "second".getBytes("UTF-8")));
+    final Store.Snapshot second = store.get(KEY1);
+    assertTrue(store.remove(KEY1));
+    assertNull(store.get(KEY1));
+    try {
+      assertEquals("1", first.getMetadata().getETag());
+      assertEquals("first", new String(read(first), "UTF-8"));
+      assertEquals("2", second.getMetadata().getETag());
+      assertEquals("second", new String(read(second), "UTF-8"));
+    } finally {
+      first.close();
+      second.close();
+    }
+  }
+
+  /**
+   * Verify updating metadata keeps the body
+   *
+   * @throws IOException
+   */
+  @Test
+  public void update() throws IOException {
+    final byte[] body = "hello".getBytes("UTF-8");
+    assertTrue(put(KEY1, "1", body));
+    final Metadata metadata = metadata("1");
+    metadata.date = 5000;
+    metadata.maxAge = 120;
+    assertTrue(store.update(KEY1, metadata));
+
+    final Store.Snapshot snapshot = store.get(KEY1);
+    try {
+      assertEquals("1", snapshot.getMetadata().getETag());
+      assertEquals(5000, snapshot.getMetadata().getDate());
+      assertEquals(120, snapshot.getMetadata().getMaxAge());
+      assertArrayEquals(body, read(snapshot));
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  /**
+   * Verify removed entries are no longer found
+   *
+   * @throws IOException
+   */
+  @Test
+  public void remove() throws IOException {
+    assertTrue(put(KEY1, "1", new byte[] { 1 }));
+    assertTrue(store.remove(KEY1));
+    assertFalse(store.remove(KEY1));
+    assertNull(store.get(KEY1));
+    assertEquals(0, store.size());
+  }
+
+  /**
+   * Verify entries are persisted across reopening the store
+   *
+   * @throws IOException
+   */
+  @Test
+  public void persist() throws IOException {
+    final byte[] body = "hello".getBytes("UTF-8");
+    assertTrue(put(KEY1, "1", body));
+    assertTrue(put(KEY2, "2", body));
+    assertTrue(put(KEY3, "3", body));
+    assertTrue(store.remove(KEY2));
+    reopen();
+    assertStored(KEY1, "1", body);
+    assertNull(store.get(KEY2));
+    assertStored(KEY3, "3", body);
+  }
+
+  /**
+   * Verify entries are reported most recently used first
+   *
+   * @throws IOException
+   */
+  @Test
+  public void entries() throws IOException {
+    final byte[] body = "hello".getBytes("UTF-8");
+    assertTrue(put(KEY1, "1", body));
+    assertTrue(put(KEY2, "2", body));
+    assertTrue(put(KEY3, "3", body));
+    store.get(KEY1).close();
+    store.flush();
+    assertEquals(Arrays.asList(KEY1, KEY3, KEY2), new ArrayList<String>(
+        store.getEntries().keySet()));
+  }
+
+  /**
+   * Verify entries written, updated, and removed since the last flush are
+   * flushed
+   *
+   * @throws IOException
+   */
+  @Test
+  public void flush() throws IOException {
+    final byte[] body = "hello".getBytes("UTF-8");
+    assertTrue(put(KEY1, "1", body));
+    assertTrue(put(KEY2, "2", body));
+    assertTrue(store.update(KEY1, metadata("3")));
+    assertTrue(store.remove(KEY2));
+    store.flush();
+    store.flush();
+    reopen();
+    assertStored(KEY1, "3", body);
+    assertNull(store.get(KEY2));
+  }
+
+  /**
+   * Verify the store can still be used after a reader was interrupted
+   *
+   * @throws IOException
+   */
+  @Test
+  public void interruptedReader() throws IOException {
+    final byte[] body = "hello".getBytes("UTF-8");
+    assertTrue(put(KEY1, "1", body));
+    assertTrue(put(KEY2, "2", body));
+
+    final Store.Snapshot snapshot = store.get(KEY1);
+    assertNotNull(snapshot);
+    Thread.currentThread().interrupt();
+    try {
+      read(snapshot);
+    } catch (IOException ignored) {
+      // Stores may fail reads on an interrupted thread
+    } finally {
+      Thread.interrupted();
+      snapshot.close();
+    }
+
+    assertStored(KEY2, "2", body);
+    assertTrue(put(KEY3, "3", body));
+    assertStored(KEY3, "3", body);
+    assertStored(KEY1, "1", body);
+  }
+
+  /**
+   * Verify least recently used entries are evicted once the store is full
+   *
+   * @throws IOException
+   */
+  @Test
+  public void evict() throws IOException {
+    final byte[] body = new byte[(int) (MAX_SIZE / 4)];
+    assertTrue(put(KEY1, "1", body));
+    assertTrue(put(KEY2, "2", body));
+    assertTrue(put(KEY3, "3", body));
+    store.get(KEY1).close();
+    for (int i = 0; i < 4; i++)
+      assertTrue(put(Integer.toHexString(i) + KEY1.substring(1), "4", body));
+    store.flush();
+    assertTrue(store.size() <= MAX_SIZE);
+    assertNull(store.get(KEY2));
+    assertNull(store.get(KEY3));
+  }
+}